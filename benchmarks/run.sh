@@ -0,0 +1,40 @@
+#!/bin/sh
+#
+# Builds and runs the RootFW benchmarks on a desktop JVM.
+# Arguments are parsed to JMH, for example './run.sh ShellBenchmark -p pipelined=true'
+#
+# JMH is downloaded from Maven Central into 'lib' on the first run.
+# Set JMH_LIB to a directory that already contains the jars to skip this.
+#
+
+set -e
+
+DIR="$(cd "$(dirname "$0")" && pwd)"
+JMH_VERSION="${JMH_VERSION:-1.37}"
+JMH_LIB="${JMH_LIB:-$DIR/lib}"
+MAVEN="https://repo1.maven.org/maven2"
+
+fetch() {
+	if [ ! -f "$JMH_LIB/$2-$3.jar" ]; then
+		echo "Downloading $2-$3.jar"
+		curl -fsSL -o "$JMH_LIB/$2-$3.jar" "$MAVEN/$1/$2/$3/$2-$3.jar"
+	fi
+}
+
+mkdir -p "$JMH_LIB"
+
+fetch org/openjdk/jmh jmh-core "$JMH_VERSION"
+fetch org/openjdk/jmh jmh-generator-annprocess "$JMH_VERSION"
+fetch net/sf/jopt-simple jopt-simple 5.0.4
+fetch org/apache/commons commons-math3 3.6.1
+
+CLASSPATH="$(find "$JMH_LIB" -name '*.jar' | tr '\n' ':')"
+CLASSES="$DIR/build/classes"
+
+rm -rf "$DIR/build"
+mkdir -p "$CLASSES"
+
+javac -nowarn -encoding UTF-8 -cp "$CLASSPATH" -d "$CLASSES" \
+	$(find "$DIR/shims" "$DIR/../src" "$DIR/src" -name '*.java')
+
+PATH="$DIR/bin:$PATH" exec java -Drootfw.shims.quiet=true -cp "$CLASSES:$CLASSPATH" org.openjdk.jmh.Main "$@"
@@ -0,0 +1,46 @@
+package android.content;
+
+import java.io.File;
+
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.os.PowerManager;
+
+/**
+ * Desktop stand-in for the Android class of the same name, covering what RootFW uses
+ */
+public class Context {
+	public static final String POWER_SERVICE = "power";
+	
+	protected final File mFilesDir;
+	
+	public Context() {
+		this(new File(System.getProperty("java.io.tmpdir"), "rootfw-files"));
+	}
+	
+	public Context(File filesDir) {
+		mFilesDir = filesDir;
+	}
+	
+	public Object getSystemService(String name) {
+		return POWER_SERVICE.equals(name) ? new PowerManager() : null;
+	}
+	
+	public AssetManager getAssets() {
+		return new AssetManager();
+	}
+	
+	public Resources getResources() {
+		return new Resources();
+	}
+	
+	public File getFilesDir() {
+		mFilesDir.mkdirs();
+		
+		return mFilesDir;
+	}
+	
+	public Context getApplicationContext() {
+		return this;
+	}
+}
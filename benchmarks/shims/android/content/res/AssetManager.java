@@ -0,0 +1,14 @@
+package android.content.res;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Desktop stand-in for the Android class of the same name, covering what RootFW uses
+ */
+public class AssetManager {
+	public InputStream open(String name) throws IOException {
+		throw new FileNotFoundException(name);
+	}
+}
@@ -0,0 +1,16 @@
+package android.content.res;
+
+import java.io.InputStream;
+
+/**
+ * Desktop stand-in for the Android class of the same name, covering what RootFW uses
+ */
+public class Resources {
+	public static class NotFoundException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+	
+	public InputStream openRawResource(int id) {
+		throw new NotFoundException();
+	}
+}
@@ -0,0 +1,14 @@
+package android.os;
+
+/**
+ * Desktop stand-in for the Android class of the same name, covering what RootFW uses
+ */
+public class Build {
+	public static final String BRAND = System.getProperty("os.name", "unknown");
+	public static final String MODEL = System.getProperty("os.arch", "unknown");
+	public static final String FINGERPRINT = System.getProperty("os.name", "") + "/" + System.getProperty("os.version", "");
+	
+	public static class VERSION {
+		public static final int SDK_INT = 21;
+	}
+}
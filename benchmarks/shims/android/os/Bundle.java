@@ -0,0 +1,21 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Desktop stand-in for the Android class of the same name, covering what RootFW uses
+ */
+public final class Bundle {
+	protected final Map<String, Object> mMap = new HashMap<String, Object>();
+	
+	public void putString(String key, String value) {
+		mMap.put(key, value);
+	}
+	
+	public String getString(String key) {
+		Object value = mMap.get(key);
+		
+		return value instanceof String ? (String) value : null;
+	}
+}
@@ -0,0 +1,115 @@
+package android.os;
+
+import java.util.Iterator;
+
+/**
+ * Desktop stand-in for the Android class of the same name, covering what RootFW uses
+ */
+public class Handler {
+	protected static final int POST = -0x7fff;
+	
+	protected final Looper mLooper;
+	
+	public Handler() {
+		this(Looper.myLooper());
+	}
+	
+	public Handler(Looper looper) {
+		mLooper = looper;
+	}
+	
+	public void handleMessage(Message msg) {
+		if (msg.what == POST && msg.obj instanceof Runnable) {
+			((Runnable) msg.obj).run();
+		}
+	}
+	
+	public final Looper getLooper() {
+		return mLooper;
+	}
+	
+	public final Message obtainMessage(int what) {
+		return obtainMessage(what, null);
+	}
+	
+	public final Message obtainMessage(int what, Object obj) {
+		Message msg = new Message();
+		msg.what = what;
+		msg.obj = obj;
+		msg.target = this;
+		
+		return msg;
+	}
+	
+	public final Message obtainMessage(int what, int arg1, int arg2, Object obj) {
+		Message msg = obtainMessage(what, obj);
+		msg.arg1 = arg1;
+		msg.arg2 = arg2;
+		
+		return msg;
+	}
+	
+	public final boolean sendMessage(Message msg) {
+		return sendMessageDelayed(msg, 0);
+	}
+	
+	public final boolean sendMessageDelayed(Message msg, long delay) {
+		msg.target = this;
+		msg.when = System.currentTimeMillis() + delay;
+		
+		return mLooper.enqueue(msg, false);
+	}
+	
+	public final boolean sendMessageAtFrontOfQueue(Message msg) {
+		msg.target = this;
+		msg.when = 0;
+		
+		return mLooper.enqueue(msg, true);
+	}
+	
+	public final boolean sendEmptyMessage(int what) {
+		return sendMessage(obtainMessage(what));
+	}
+	
+	public final boolean sendEmptyMessageDelayed(int what, long delay) {
+		return sendMessageDelayed(obtainMessage(what), delay);
+	}
+	
+	public final boolean post(Runnable runnable) {
+		return sendMessage(obtainMessage(POST, runnable));
+	}
+	
+	public final void removeMessages(int what) {
+		removeMessages(what, null);
+	}
+	
+	public final void removeMessages(int what, Object obj) {
+		synchronized (mLooper.mQueue) {
+			Iterator<Message> iterator = mLooper.mQueue.iterator();
+			
+			while (iterator.hasNext()) {
+				Message msg = iterator.next();
+				
+				if (msg.target == this && msg.what == what && (obj == null || msg.obj == obj)) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+	
+	public final boolean hasMessages(int what) {
+		return hasMessages(what, null);
+	}
+	
+	public final boolean hasMessages(int what, Object obj) {
+		synchronized (mLooper.mQueue) {
+			for (Message msg : mLooper.mQueue) {
+				if (msg.target == this && msg.what == what && (obj == null || msg.obj == obj)) {
+					return true;
+				}
+			}
+			
+			return false;
+		}
+	}
+}
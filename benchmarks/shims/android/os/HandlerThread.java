@@ -0,0 +1,48 @@
+package android.os;
+
+/**
+ * Desktop stand-in for the Android class of the same name, covering what RootFW uses
+ */
+public class HandlerThread extends Thread {
+	protected Looper mLooper;
+	
+	public HandlerThread(String name) {
+		super(name);
+		setDaemon(true);
+	}
+	
+	@Override
+	public void run() {
+		Looper.prepare();
+		
+		synchronized (this) {
+			mLooper = Looper.myLooper();
+			notifyAll();
+		}
+		
+		Looper.loop();
+	}
+	
+	public Looper getLooper() {
+		synchronized (this) {
+			while (isAlive() && mLooper == null) {
+				try {
+					wait();
+				
+				} catch (InterruptedException e) {}
+			}
+		}
+		
+		return mLooper;
+	}
+	
+	public boolean quit() {
+		Looper looper = getLooper();
+		
+		if (looper != null) {
+			looper.quit(); return true;
+		}
+		
+		return false;
+	}
+}
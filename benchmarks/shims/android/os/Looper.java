@@ -0,0 +1,96 @@
+package android.os;
+
+import java.util.LinkedList;
+
+/**
+ * Desktop stand-in for the Android class of the same name, covering what RootFW uses
+ */
+public final class Looper {
+	protected static final ThreadLocal<Looper> oLooper = new ThreadLocal<Looper>();
+	
+	protected final LinkedList<Message> mQueue = new LinkedList<Message>();
+	protected final Thread mThread;
+	protected boolean mQuit = false;
+	
+	private Looper() {
+		mThread = Thread.currentThread();
+	}
+	
+	public static void prepare() {
+		oLooper.set(new Looper());
+	}
+	
+	public static Looper myLooper() {
+		return oLooper.get();
+	}
+	
+	public static void loop() {
+		Looper looper = myLooper();
+		
+		while (true) {
+			Message msg;
+			
+			synchronized (looper.mQueue) {
+				while (!looper.mQuit && (looper.mQueue.isEmpty() || looper.mQueue.getFirst().when > System.currentTimeMillis())) {
+					try {
+						if (looper.mQueue.isEmpty()) {
+							looper.mQueue.wait();
+						
+						} else {
+							looper.mQueue.wait(Math.max(1, looper.mQueue.getFirst().when - System.currentTimeMillis()));
+						}
+					
+					} catch (InterruptedException e) {}
+				}
+				
+				if (looper.mQuit) {
+					return;
+				}
+				
+				msg = looper.mQueue.removeFirst();
+			}
+			
+			msg.target.handleMessage(msg);
+		}
+	}
+	
+	public void quit() {
+		synchronized (mQueue) {
+			mQuit = true;
+			mQueue.notifyAll();
+		}
+	}
+	
+	public Thread getThread() {
+		return mThread;
+	}
+	
+	boolean enqueue(Message msg, boolean front) {
+		synchronized (mQueue) {
+			if (mQuit) {
+				return false;
+			}
+			
+			if (front) {
+				mQueue.addFirst(msg);
+			
+			} else {
+				int index = 0;
+				
+				for (Message current : mQueue) {
+					if (current.when > msg.when) {
+						break;
+					}
+					
+					index++;
+				}
+				
+				mQueue.add(index, msg);
+			}
+			
+			mQueue.notifyAll();
+			
+			return true;
+		}
+	}
+}
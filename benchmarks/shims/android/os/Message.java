@@ -0,0 +1,22 @@
+package android.os;
+
+/**
+ * Desktop stand-in for the Android class of the same name, covering what RootFW uses
+ */
+public final class Message {
+	public int what;
+	public int arg1;
+	public int arg2;
+	public Object obj;
+	
+	Handler target;
+	long when;
+	
+	public static Message obtain() {
+		return new Message();
+	}
+	
+	public void sendToTarget() {
+		target.sendMessage(this);
+	}
+}
@@ -0,0 +1,10 @@
+package android.os;
+
+/**
+ * Desktop stand-in for the Android class of the same name, covering what RootFW uses
+ */
+public class PowerManager {
+	public void reboot(String reason) {
+		throw new SecurityException("Rebooting is not supported by the benchmark shims");
+	}
+}
@@ -0,0 +1,12 @@
+package android.os;
+
+/**
+ * Desktop stand-in for the Android class of the same name, covering what RootFW uses
+ */
+public class Process {
+	public static final int FIRST_APPLICATION_UID = 10000;
+	
+	public static final int myPid() {
+		return 0;
+	}
+}
@@ -0,0 +1,28 @@
+package android.text;
+
+import java.util.Iterator;
+
+/**
+ * Desktop stand-in for the Android class of the same name, covering what RootFW uses
+ */
+public class TextUtils {
+	public static String join(CharSequence delimiter, Iterable<?> tokens) {
+		StringBuilder builder = new StringBuilder();
+		Iterator<?> iterator = tokens.iterator();
+		
+		if (iterator.hasNext()) {
+			builder.append(iterator.next());
+			
+			while (iterator.hasNext()) {
+				builder.append(delimiter);
+				builder.append(iterator.next());
+			}
+		}
+		
+		return builder.toString();
+	}
+	
+	public static boolean isEmpty(CharSequence str) {
+		return str == null || str.length() == 0;
+	}
+}
@@ -0,0 +1,45 @@
+package android.util;
+
+/**
+ * Desktop stand-in for the Android class of the same name, covering what RootFW uses. 
+ * Messages are written to stderr, unless the system property <code>rootfw.shims.quiet</code> is set.
+ */
+public final class Log {
+	protected static final boolean QUIET = Boolean.getBoolean("rootfw.shims.quiet");
+	
+	protected static int print(String level, String tag, String msg, Throwable e) {
+		if (!QUIET) {
+			System.err.println(level + "/" + tag + ": " + msg);
+			
+			if (e != null) {
+				e.printStackTrace();
+			}
+		}
+		
+		return 0;
+	}
+	
+	public static int d(String tag, String msg) {
+		return print("D", tag, msg, null);
+	}
+	
+	public static int i(String tag, String msg) {
+		return print("I", tag, msg, null);
+	}
+	
+	public static int w(String tag, String msg) {
+		return print("W", tag, msg, null);
+	}
+	
+	public static int w(String tag, String msg, Throwable e) {
+		return print("W", tag, msg, e);
+	}
+	
+	public static int e(String tag, String msg) {
+		return print("E", tag, msg, null);
+	}
+	
+	public static int e(String tag, String msg, Throwable e) {
+		return print("E", tag, msg, e);
+	}
+}
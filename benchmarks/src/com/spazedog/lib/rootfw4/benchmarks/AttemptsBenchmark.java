@@ -0,0 +1,90 @@
+/*
+ * This file is part of the RootFW Project: https://github.com/spazedog/rootfw
+ *  
+ * Copyright (c) 2015 Daniel Bergløv
+ * 
+ * RootFW is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * RootFW is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with RootFW. If not, see <http://www.gnu.org/licenses/>
+ */
+package com.spazedog.lib.rootfw4.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.spazedog.lib.rootfw4.Shell;
+import com.spazedog.lib.rootfw4.Shell.Result;
+
+/**
+ * Measures what it costs when the first commands of an execution fail, and the next one has to be tried
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttemptsBenchmark {
+	@Param({"0", "1", "3"})
+	public int failures;
+	
+	@Param({"false", "true"})
+	public boolean pipelined;
+	
+	protected Shell mShell;
+	protected String[] mCommands;
+	
+	@Setup
+	public void setup() {
+		mShell = ShellBenchmark.Shells.connect(pipelined);
+		mCommands = new String[failures + 1];
+		
+		for (int i=0; i < failures; i++) {
+			mCommands[i] = "false";
+		}
+		
+		mCommands[failures] = "echo ok";
+	}
+	
+	@TearDown
+	public void tearDown() {
+		mShell.destroy();
+	}
+	
+	/**
+	 * The commands are tried one at a time, until one of them succeeds
+	 */
+	@Benchmark
+	public Result fallback() {
+		return mShell.execute(mCommands);
+	}
+	
+	/**
+	 * An {@link Shell.Attempts} that has learned which binary works, which is how most of the utility classes execute their commands
+	 */
+	@Benchmark
+	public Result learnedAttempts() {
+		return mShell.createAttempts("echo ok").execute();
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of the RootFW Project: https://github.com/spazedog/rootfw
+ *  
+ * Copyright (c) 2015 Daniel Bergløv
+ * 
+ * RootFW is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * RootFW is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with RootFW. If not, see <http://www.gnu.org/licenses/>
+ */
+package com.spazedog.lib.rootfw4.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.spazedog.lib.rootfw4.containers.Data.DataSorting;
+import com.spazedog.lib.rootfw4.utils.File.FileData;
+
+/**
+ * Measures the filtering in {@link com.spazedog.lib.rootfw4.containers.Data} on large outputs. 
+ * This does not need a shell, the output is generated to look like the one from <code>ls -l</code>. <br /><br />
+ * 
+ * The filters change the instance, so each invocation works on a new one. 
+ * The cost of this is measured by {@link #baseline()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataBenchmark {
+	protected static final Pattern oPatternMatch = Pattern.compile("^d.* entry[0-9]*5$");
+	
+	@Param({"1000", "100000"})
+	public int lines;
+	
+	protected String[] mLines;
+	
+	@Setup
+	public void setup() {
+		mLines = new String[lines];
+		
+		for (int i=0; i < lines; i++) {
+			mLines[i] = (i % 3 == 0 ? "drwxr-xr-x" : "-rw-r--r--") + "    1 0        0            " + (i * 17) + " Jan  1 00:00 entry" + i + (i % 10 == 0 ? "   " : "");
+		}
+	}
+	
+	protected FileData create() {
+		return new FileData(mLines.clone());
+	}
+	
+	@Benchmark
+	public FileData baseline() {
+		return create();
+	}
+	
+	@Benchmark
+	public FileData sortContains() {
+		return create().sort("entry5");
+	}
+	
+	@Benchmark
+	public FileData assortContains() {
+		return create().assort("drwx");
+	}
+	
+	@Benchmark
+	public FileData sortPattern() {
+		return create().sort(new DataSorting() {
+			@Override
+			public Boolean test(String input) {
+				return oPatternMatch.matcher(input).matches();
+			}
+		});
+	}
+	
+	@Benchmark
+	public FileData trim() {
+		return create().trim();
+	}
+	
+	@Benchmark
+	public String getString() {
+		return create().getString();
+	}
+}
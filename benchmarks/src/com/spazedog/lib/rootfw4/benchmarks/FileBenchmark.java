@@ -0,0 +1,146 @@
+/*
+ * This file is part of the RootFW Project: https://github.com/spazedog/rootfw
+ *  
+ * Copyright (c) 2015 Daniel Bergløv
+ * 
+ * RootFW is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * RootFW is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with RootFW. If not, see <http://www.gnu.org/licenses/>
+ */
+package com.spazedog.lib.rootfw4.benchmarks;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.spazedog.lib.rootfw4.Shell;
+import com.spazedog.lib.rootfw4.Shell.Result;
+import com.spazedog.lib.rootfw4.utils.File;
+import com.spazedog.lib.rootfw4.utils.File.FileData;
+import com.spazedog.lib.rootfw4.utils.File.FileStat;
+
+/**
+ * Measures the high-level {@link File} operations. <br /><br />
+ * 
+ * The stand-in shell runs as the same user as the JVM, so {@link File} is able to read and copy regular files directly. 
+ * {@link #readShell()} runs the same command that {@link File#read()} falls back on when it cannot, which is the normal case for files that requires root. 
+ * The directory copy still needs several shell round trips for each entry in order to check it's type.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileBenchmark {
+	protected static final int LINES = 1000;
+	protected static final int ENTRIES = 20;
+	
+	@Param({"false", "true"})
+	public boolean pipelined;
+	
+	/**
+	 * Whether or not {@link File#getDetailedList()} is allowed to use the result cache
+	 */
+	@Param({"false", "true"})
+	public boolean cached;
+	
+	protected Shell mShell;
+	protected java.io.File mRoot;
+	protected File mFile;
+	protected File mDirectory;
+	protected String mCopyPath;
+	protected int mCopyCount = 0;
+	
+	@Setup
+	public void setup() throws IOException {
+		mShell = ShellBenchmark.Shells.connect(pipelined);
+		
+		if (!cached) {
+			mShell.getResultCache().setMaxSize(0);
+		}
+		
+		mRoot = java.io.File.createTempFile("rootfw-bench", "");
+		mRoot.delete();
+		
+		java.io.File directory = new java.io.File(mRoot, "directory");
+		directory.mkdirs();
+		
+		for (int i=0; i < ENTRIES; i++) {
+			write(new java.io.File(directory, "entry" + i), 10);
+		}
+		
+		java.io.File file = new java.io.File(mRoot, "file");
+		write(file, LINES);
+		
+		mFile = mShell.getFile(file.getAbsolutePath());
+		mDirectory = mShell.getFile(directory.getAbsolutePath());
+	}
+	
+	@TearDown
+	public void tearDown() {
+		mShell.getFile(mRoot.getAbsolutePath()).remove();
+		mShell.destroy();
+	}
+	
+	/**
+	 * Each copy needs a destination that does not yet exist
+	 */
+	@Setup(Level.Invocation)
+	public void nextCopy() {
+		mCopyPath = mRoot.getAbsolutePath() + "/copy" + (mCopyCount++);
+	}
+	
+	protected static void write(java.io.File file, int lines) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		
+		for (int i=0; i < lines; i++) {
+			writer.write("line " + i + " of the file used by the benchmarks\n");
+		}
+		
+		writer.close();
+	}
+	
+	@Benchmark
+	public FileData read() {
+		return mFile.read();
+	}
+	
+	@Benchmark
+	public Result readShell() {
+		return mShell.createAttempts("cat '" + mFile.getAbsolutePath() + "' 2> /dev/null").setReadOnly(true).execute();
+	}
+	
+	@Benchmark
+	public FileStat[] getDetailedList() {
+		return mDirectory.getDetailedList();
+	}
+	
+	@Benchmark
+	public Boolean copyDirectory() {
+		return mDirectory.copy(mCopyPath);
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of the RootFW Project: https://github.com/spazedog/rootfw
+ *  
+ * Copyright (c) 2015 Daniel Bergløv
+ * 
+ * RootFW is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * RootFW is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with RootFW. If not, see <http://www.gnu.org/licenses/>
+ */
+package com.spazedog.lib.rootfw4.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.spazedog.lib.rootfw4.Common;
+import com.spazedog.lib.rootfw4.Shell;
+import com.spazedog.lib.rootfw4.Shell.Result;
+import com.spazedog.lib.rootfw4.Shell.ResultFuture;
+import com.spazedog.lib.rootfw4.ShellDispatcher;
+import com.spazedog.lib.rootfw4.ShellDispatcher.ConcurrentDispatcher;
+import com.spazedog.lib.rootfw4.ShellDispatcher.LooperDispatcher;
+import com.spazedog.lib.rootfw4.ShellStreamer;
+
+/**
+ * Measures the cost of a single round trip to the shell, and how many commands the connection can sustain 
+ * when callers do not wait for each other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShellBenchmark {
+	protected static final int BURST = 64;
+	
+	@Param({"false", "true"})
+	public boolean pipelined;
+	
+	@Param({"looper", "concurrent"})
+	public String dispatcher;
+	
+	protected Shell mShell;
+	
+	@Setup
+	public void setup() {
+		mShell = Shells.connect(pipelined, "concurrent".equals(dispatcher) ? new ConcurrentDispatcher() : new LooperDispatcher());
+	}
+	
+	@TearDown
+	public void tearDown() {
+		mShell.destroy();
+	}
+	
+	/**
+	 * One small command, waiting for the result before the next one is sent
+	 */
+	@Benchmark
+	public Result roundTrip() {
+		return mShell.execute("echo 1");
+	}
+	
+	/**
+	 * One command with 10000 lines of output, which is dominated by reading and collecting the lines
+	 */
+	@Benchmark
+	public Result largeOutput() {
+		return mShell.execute("seq 1 10000");
+	}
+	
+	/**
+	 * Commands submitted in bursts without waiting for each other, reported per command
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(BURST)
+	public void sustained(Blackhole blackhole) throws Exception {
+		List<ResultFuture> futures = new ArrayList<ResultFuture>(BURST);
+		
+		for (int i=0; i < BURST; i++) {
+			futures.add(mShell.executeAsync("echo " + i, null));
+		}
+		
+		for (ResultFuture future : futures) {
+			blackhole.consume(future.get());
+		}
+	}
+	
+	/**
+	 * Helper used by the benchmarks to create their connection
+	 */
+	public static class Shells {
+		public static Shell connect(boolean pipelined) {
+			return connect(pipelined, null);
+		}
+		
+		public static Shell connect(boolean pipelined, ShellDispatcher dispatcher) {
+			Common.DEBUG = false;
+			
+			ShellStreamer stream = new ShellStreamer();
+			stream.setSeparateErrors(true);
+			stream.setPipelined(pipelined);
+			stream.setDispatcher(dispatcher);
+			
+			Shell shell = new Shell(true, stream);
+			
+			if (!shell.isConnected()) {
+				throw new IllegalStateException("Could not start the shell, make sure that the 'su' stand-in from benchmarks/bin is in PATH");
+			}
+			
+			return shell;
+		}
+	}
+}
@@ -0,0 +1,625 @@
+/*
+ * This file is part of the RootFW Project: https://github.com/spazedog/rootfw
+ *  
+ * Copyright (c) 2015 Daniel Bergløv
+ * 
+ * RootFW is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * RootFW is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with RootFW. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.rootfw4;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import com.spazedog.lib.rootfw4.Shell.Result;
+
+/**
+ * A registry of the commands that are available to the shell, and which of the binaries in {@link Common#BINARIES} provides them. <br /><br />
+ * 
+ * The registry is filled by {@link #probe(Shell)}, which runs in the background the first time a {@link Shell} needs the registry.
+ * It uses a single execution to get the applet list from <code>busybox</code> and to check each of {@link #COMMANDS}
+ * against the remaining binaries. Anything that was not covered by the probe is added lazily by {@link Shell#findCommand(String)}. <br /><br />
+ * 
+ * The registry also stores other device facts, like which <code>ls</code> and <code>df</code> arguments are supported. 
+ * Use {@link #load(Context)} before the first connection to have all of this stored in the app's private storage, 
+ * so that it can be reused on the next process start. The stored profile is only used on the same ROM build and <code>su</code> binary. <br /><br />
+ * 
+ * A root shell can have a different environment than a regular user shell, so the registry remembers which one it was probed with. 
+ * A registry probed by a user shell is replaced once a root shell needs it, while a registry probed by a root shell is also used by user shells.
+ */
+public class Capabilities {
+	public static final String TAG = Common.TAG + ".Capabilities";
+	
+	/**
+	 * The commands that {@link #probe(Shell)} checks for each binary that cannot list it's own applets
+	 */
+	public static String[] COMMANDS = new String[]{"cat", "ls", "test", "readlink", "wc", "df", "grep", "sed", "pidof", "stat"};
+	
+	protected static final Map<String, Boolean> mCommands = new ConcurrentHashMap<String, Boolean>();
+	protected static final Map<String, Boolean> mFeatures = new ConcurrentHashMap<String, Boolean>();
+	protected static final Set<String> mListed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	protected static final Object mProbeLock = new Object();
+	protected static volatile Boolean mProbed = false;
+	protected static volatile Boolean mProbedRoot = false;
+	protected static Boolean mProbing = false;
+	protected static Boolean mProbingRoot = false;
+	protected static Integer mGeneration = 0;
+	protected static volatile File mStorage;
+	protected static final Object mSaveLock = new Object();
+	protected static final AtomicBoolean mSaveQueued = new AtomicBoolean();
+	
+	/**
+	 * The time in milliseconds that new facts are collected before the profile is written, 
+	 * so that a burst of them only causes a single write
+	 */
+	public static Integer SAVE_DELAY = 2000;
+	
+	protected static String mProbeMarker = "CAP:a00c38d8:CAP";
+	
+	/**
+	 * Changing this will make any stored profile from older versions invalid
+	 */
+	protected static final Integer VERSION = 1;
+	protected static final String FILENAME = "rootfw.capabilities";
+	protected static final String[] SU_PATHS = new String[]{"/system/xbin/su", "/system/bin/su", "/sbin/su", "/su/bin/su"};
+	
+	/**
+	 * Get the full command for a binary and a command name.
+	 * 
+	 * Example: String("busybox"), String("cat") would return String("busybox cat")
+	 */
+	public static String getCommand(String binary, String bin) {
+		return binary != null && binary.length() > 0 ? binary + " " + bin : bin;
+	}
+	
+	/**
+	 * Check whether a binary supports a specific command.
+	 * 
+	 * @param binary
+	 *     One of the binaries from {@link Common#BINARIES}, where NULL means the plain command from PATH
+	 * 
+	 * @param bin
+	 *     The command to check
+	 * 
+	 * @return
+	 *     True or False if this is known, or NULL if it has not yet been checked
+	 */
+	public static Boolean hasCommand(String binary, String bin) {
+		Boolean state = mCommands.get(getCommand(binary, bin));
+		
+		/*
+		 * A binary that has listed it's applets does not support anything that was left out
+		 */
+		if (state == null && binary != null && mListed.contains(binary)) {
+			return false;
+		}
+		
+		return state;
+	}
+	
+	/**
+	 * Store whether or not a binary supports a specific command
+	 * 
+	 * @see #hasCommand(String, String)
+	 */
+	public static void putCommand(String binary, String bin, Boolean available) {
+		if (!available.equals( mCommands.put(getCommand(binary, bin), available) )) {
+			changed();
+		}
+	}
+	
+	/**
+	 * Get a stored device fact, like whether or not a command supports a specific argument.
+	 * 
+	 * @param key
+	 *     The name of the fact, like String("ls -lna")
+	 * 
+	 * @return
+	 *     The stored value, or NULL if it has not yet been checked
+	 */
+	public static Boolean getFeature(String key) {
+		return mFeatures.get(key);
+	}
+	
+	/**
+	 * Store a device fact
+	 * 
+	 * @see #getFeature(String)
+	 */
+	public static void putFeature(String key, Boolean value) {
+		if (!value.equals( mFeatures.put(key, value) )) {
+			changed();
+		}
+	}
+	
+	/**
+	 * Locate whichever binary in {@link Common#BINARIES} that supports a specific command,
+	 * based only on what is already in the registry.
+	 * 
+	 * @param bin
+	 *     The command to locate
+	 * 
+	 * @return
+	 *     The full command, like String("busybox cat"), or NULL if this cannot be decided without checking the shell first
+	 */
+	public static String findCommand(String bin) {
+		for (String binary : Common.BINARIES) {
+			Boolean state = hasCommand(binary, bin);
+			
+			if (state == null) {
+				return null;
+			
+			} else if (state) {
+				return getCommand(binary, bin);
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Get a copy of all of the commands in the registry.
+	 * The keys are full commands, like String("toolbox cat"), and the values tell whether or not they are available.
+	 */
+	public static Map<String, Boolean> getCommands() {
+		return new HashMap<String, Boolean>(mCommands);
+	}
+	
+	/**
+	 * Check whether or not {@link #probe(Shell)} has been completed
+	 */
+	public static Boolean isProbed() {
+		return mProbed;
+	}
+	
+	/**
+	 * Check whether or not {@link #probe(Shell)} has been completed by a shell with at least the parsed privileges
+	 * 
+	 * @param root
+	 *     Whether the registry is needed for a root shell
+	 */
+	public static Boolean isProbed(Boolean root) {
+		return mProbed && (mProbedRoot || !root);
+	}
+	
+	/**
+	 * Remove everything from the registry. The next {@link Shell} that connects will run a new probe.
+	 */
+	public static void clear() {
+		synchronized (mProbeLock) {
+			mCommands.clear();
+			mFeatures.clear();
+			mListed.clear();
+			mProbed = false;
+			mProbedRoot = false;
+			
+			/*
+			 * A probe that is running will not add it's result to the cleared registry
+			 */
+			mGeneration += 1;
+		}
+	}
+	
+	/**
+	 * Load a stored profile from the app's private storage. This should be called before the first {@link Shell} connects, 
+	 * as a valid profile makes the connection probe unnecessary. <br /><br />
+	 * 
+	 * After this has been called, the profile is kept up to date whenever something new is added to the registry.
+	 * 
+	 * @param context
+	 *     An android Context object
+	 * 
+	 * @return
+	 *     True if a profile matching this device was loaded
+	 */
+	public static Boolean load(Context context) {
+		File file = new File(context.getFilesDir(), FILENAME);
+		
+		synchronized (mProbeLock) {
+			mStorage = file;
+			
+			if (file.exists()) {
+				Properties profile = new Properties();
+				FileInputStream stream = null;
+				
+				try {
+					stream = new FileInputStream(file);
+					profile.load(stream);
+				
+				} catch (IOException e) {
+					Log.w(TAG, e.getMessage(), e); return false;
+				
+				} finally {
+					if (stream != null) {
+						try {
+							stream.close();
+						
+						} catch (IOException e) {}
+					}
+				}
+				
+				if (!String.valueOf(VERSION).equals(profile.getProperty("version")) || !getIdentity().equals(profile.getProperty("identity"))) {
+					if(Common.DEBUG)Log.d(TAG, "load: The stored profile belongs to a different build or su binary");
+					
+					return false;
+				}
+				
+				for (String name : profile.stringPropertyNames()) {
+					if (name.startsWith("command.")) {
+						mCommands.put(name.substring(8), Boolean.valueOf(profile.getProperty(name)));
+					
+					} else if (name.startsWith("feature.")) {
+						mFeatures.put(name.substring(8), Boolean.valueOf(profile.getProperty(name)));
+					
+					} else if (name.startsWith("listed.")) {
+						mListed.add(name.substring(7));
+					}
+				}
+				
+				mProbed = Boolean.valueOf(profile.getProperty("probed"));
+				mProbedRoot = Boolean.valueOf(profile.getProperty("root"));
+				
+				if(Common.DEBUG)Log.d(TAG, "load: Loaded " + mCommands.size() + " commands and " + mFeatures.size() + " features from the stored profile");
+				
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Write the registry to the app's private storage.
+	 * This is done automatically once {@link #load(Context)} has been called. <br /><br />
+	 * 
+	 * The profile is written to a temporary file which then replaces the old one, 
+	 * so that a process being killed halfway through the write cannot leave a broken profile behind.
+	 * 
+	 * @return
+	 *     True if the profile was written
+	 */
+	public static Boolean save() {
+		synchronized (mSaveLock) {
+			File storage = mStorage;
+			
+			if (storage != null) {
+				Properties profile = createProfile();
+				File temp = new File(storage.getPath() + ".tmp");
+				FileOutputStream stream = null;
+				
+				try {
+					stream = new FileOutputStream(temp);
+					profile.store(stream, "RootFW capability profile");
+					stream.getFD().sync();
+					stream.close();
+					stream = null;
+				
+					if (temp.renameTo(storage)) {
+						return true;
+					}
+				
+					Log.w(TAG, "save: Could not replace " + storage.getPath());
+				
+				} catch (IOException e) {
+					Log.w(TAG, e.getMessage(), e);
+				
+				} finally {
+					if (stream != null) {
+						try {
+							stream.close();
+						
+						} catch (IOException e) {}
+					}
+				}
+				
+				temp.delete();
+			}
+			
+			return false;
+		}
+	}
+	
+	/**
+	 * Copy the registry into a new profile. This holds the probe lock, so that the result of a probe is not copied halfway through being added.
+	 */
+	protected static Properties createProfile() {
+		String identity = getIdentity();
+		
+		synchronized (mProbeLock) {
+			Properties profile = new Properties();
+			
+			profile.setProperty("version", String.valueOf(VERSION));
+			profile.setProperty("identity", identity);
+			profile.setProperty("probed", String.valueOf(mProbed));
+			profile.setProperty("root", String.valueOf(mProbedRoot));
+			
+			for (Entry<String, Boolean> entry : mCommands.entrySet()) {
+				profile.setProperty("command." + entry.getKey(), String.valueOf(entry.getValue()));
+			}
+			
+			for (Entry<String, Boolean> entry : mFeatures.entrySet()) {
+				profile.setProperty("feature." + entry.getKey(), String.valueOf(entry.getValue()));
+			}
+			
+			for (String binary : mListed) {
+				profile.setProperty("listed." + binary, "true");
+			}
+			
+			return profile;
+		}
+	}
+	
+	/**
+	 * Save the profile when something new is added after the probe has finished. 
+	 * The save is done on a worker from the default {@link ShellDispatcher} after {@link #SAVE_DELAY}, 
+	 * and anything else that is added in the mean time is included in the same write.
+	 */
+	protected static void changed() {
+		if (mStorage != null && mProbed && mSaveQueued.compareAndSet(false, true)) {
+			ShellDispatcher.getDefault().startWorker("RootFW_Capabilities", new Runnable(){
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(SAVE_DELAY);
+					
+					} catch (InterruptedException e) {}
+					
+					mSaveQueued.set(false);
+					
+					save();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Build a string that identifies the current ROM build and <code>su</code> binary. 
+	 * A stored profile is only valid as long as both of these stays the same.
+	 */
+	protected static String getIdentity() {
+		List<String> locations = new ArrayList<String>();
+		String path = System.getenv("PATH");
+		String identity = "none";
+		
+		if (path != null) {
+			for (String dir : path.split(":")) {
+				if (dir.length() > 0) {
+					locations.add(dir + "/su");
+				}
+			}
+		}
+		
+		Collections.addAll(locations, SU_PATHS);
+		
+		for (String location : locations) {
+			File su = new File(location);
+			
+			if (su.exists()) {
+				identity = location + ":" + su.length() + ":" + su.lastModified(); break;
+			}
+		}
+		
+		return Build.FINGERPRINT + "|" + identity;
+	}
+	
+	/**
+	 * Fill the registry using a single execution on the parsed {@link Shell}.
+	 * This does nothing if a probe has already been completed by a shell with the same or higher privileges. 
+	 * Anything found by a probe from a regular user shell is removed before probing with a root shell.
+	 * 
+	 * @param shell
+	 *     A connected {@link Shell}
+	 * 
+	 * @return
+	 *     True if the registry has been probed
+	 */
+	public static Boolean probe(Shell shell) {
+		Boolean root = shell != null && shell.isRoot();
+		Integer generation = null;
+		
+		/*
+		 * The lock is only held while checking and while adding the result, not during the execution, 
+		 * as that can take a while and would otherwise also block clear(), load() and the background saves
+		 */
+		synchronized (mProbeLock) {
+			if (shell == null || !shell.isConnected() || isProbed(root) || (mProbing && (mProbingRoot || !root))) {
+				return mProbed;
+			}
+			
+			mProbing = true;
+			mProbingRoot = root;
+			generation = mGeneration;
+		}
+		
+		Boolean probed = false;
+		
+		try {
+			if(Common.DEBUG)Log.d(TAG, "probe: Probing the shell for available commands");
+				
+			StringBuilder script = new StringBuilder();
+			StringBuilder binaries = new StringBuilder();
+			StringBuilder commands = new StringBuilder();
+			
+			for (String binary : Common.BINARIES) {
+				if ("busybox".equals(binary)) {
+					/*
+					 * Older busybox versions does not support --list, but the help text contains the same list
+					 */
+					script.append("echo '" + mProbeMarker + ":" + binary + "'; " + binary + " --list 2> /dev/null || " + binary + " 2>&1; ");
+				
+				} else {
+					binaries.append(" '" + (binary != null ? binary : "") + "'");
+				}
+			}
+				
+			for (String bin : COMMANDS) {
+				commands.append(" '" + bin + "'");
+			}
+				
+			if (binaries.length() > 0 && commands.length() > 0) {
+				script.append("for RFW_B in" + commands + "; do for RFW_T in" + binaries + "; do echo \"" + mProbeMarker + ":$RFW_T:$RFW_B\"; $RFW_T $RFW_B -h < /dev/null 2>&1; done; done; ");
+			}
+			
+			script.append("true");
+			
+			Result result = shell.execute(script.toString());
+			
+			if (result != null) {
+				Map<String, Boolean> found = new HashMap<String, Boolean>();
+				Set<String> listed = new HashSet<String>();
+				
+				parse(result.getArray(), found, listed);
+				
+				synchronized (mProbeLock) {
+					if (!generation.equals(mGeneration) || isProbed(root)) {
+						if(Common.DEBUG)Log.d(TAG, "probe: The registry was changed during the probe, dropping the result");
+					
+					} else {
+						/*
+						 * Anything found by a probe from a regular user shell is replaced by the root probe
+						 */
+						if (mProbed) {
+							mCommands.clear();
+							mFeatures.clear();
+							mListed.clear();
+						}
+						
+						mCommands.putAll(found);
+						mListed.addAll(listed);
+						
+						mProbed = probed = true;
+						mProbedRoot = root;
+					}
+				}
+				
+			} else {
+				if(Common.DEBUG)Log.d(TAG, "probe: The probe did not return any result");
+			}
+				
+		} finally {
+			synchronized (mProbeLock) {
+				if (mProbingRoot.equals(root)) {
+					mProbing = false;
+				}
+			}
+		}
+			
+		/*
+		 * A new probe is saved right away, but without holding up others waiting for the registry
+		 */
+		if (probed && mStorage != null) {
+			save();
+		}
+		
+		return mProbed;
+	}
+	
+	/**
+	 * Split the probe output into sections, one per marker line, and collect what they contain into the parsed collections
+	 */
+	protected static void parse(String[] lines, Map<String, Boolean> commands, Set<String> listed) {
+		String section = null;
+		List<String> output = new ArrayList<String>();
+		
+		for (String line : lines) {
+			if (line.startsWith(mProbeMarker + ":")) {
+				if (section != null) {
+					parseSection(section, output, commands, listed);
+				}
+				
+				section = line.substring(mProbeMarker.length() + 1);
+				output.clear();
+			
+			} else if (section != null) {
+				output.add(line);
+			}
+		}
+		
+		if (section != null) {
+			parseSection(section, output, commands, listed);
+		}
+	}
+	
+	/**
+	 * Sections named <code>binary:command</code> contain the output of <code>binary command -h</code>,
+	 * while sections named <code>binary</code> contain a full applet list
+	 */
+	protected static void parseSection(String section, List<String> output, Map<String, Boolean> commands, Set<String> listed) {
+		Integer pos = section.indexOf(":");
+		
+		if (pos >= 0) {
+			String binary = section.substring(0, pos);
+			String bin = section.substring(pos + 1);
+			String line = output.size() > 0 ? output.get(output.size() - 1) : null;
+			
+			/*
+			 * Some commands, like the shell's own 'test', does not print anything at all
+			 */
+			commands.put(getCommand(binary.length() > 0 ? binary : null, bin), line == null || (!line.endsWith("not found") && !line.endsWith("such tool")));
+		
+		} else {
+			Boolean functions = false;
+			Boolean missing = false;
+			List<String> applets = new ArrayList<String>();
+			
+			for (String line : output) {
+				if (line.endsWith("not found")) {
+					missing = true; break;
+				
+				} else if (line.contains("Currently defined functions")) {
+					functions = true;
+				
+				} else if (functions) {
+					for (String applet : line.trim().split("[,\\s]+")) {
+						if (applet.length() > 0) {
+							applets.add(applet);
+						}
+					}
+				
+				} else if (!line.contains(" ") && line.trim().length() > 0) {
+					applets.add(line.trim());
+				}
+			}
+			
+			if (missing) {
+				applets.clear();
+			}
+			
+			if(Common.DEBUG)Log.d(TAG, "parseSection: Found " + applets.size() + " applets in " + section);
+			
+			for (String applet : applets) {
+				commands.put(getCommand(section, applet), true);
+			}
+			
+			listed.add(section);
+		}
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * This file is part of the RootFW Project: https://github.com/spazedog/rootfw
+ *  
+ * Copyright (c) 2015 Daniel Bergløv
+ * 
+ * RootFW is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * RootFW is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with RootFW. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.rootfw4;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.util.Log;
+
+import com.spazedog.lib.rootfw4.Shell.Result;
+
+/**
+ * A size bound cache for results of commands that only read information, like <code>df</code>, <code>readlink</code> or <code>pidof</code>. <br /><br />
+ * 
+ * Each entry has it's own time to live, and the least recently used entry is evicted once the cache is full.
+ * Entries also remember the absolute paths that was quoted in their command, and are invalidated when one of these paths
+ * is changed by one of the utility classes, which announce changes using {@link Shell#sendBroadcast(String, android.os.Bundle)}.
+ * Changes made in other ways, like by a custom command, are only picked up once the entry expires, or when {@link #invalidate(String)} is called. <br /><br />
+ * 
+ * Each {@link Shell} has it's own cache, which is used by {@link Shell#executeCached(StreamCollector, Integer)} and {@link Shell.Attempts#setCacheable(Integer)}.
+ */
+public class ResultCache {
+	public static final String TAG = Common.TAG + ".ResultCache";
+	
+	protected final static Pattern oPatternPathSearch = Pattern.compile("'(/[^']*)'");
+	
+	protected final Map<String, CacheEntry> mEntries;
+	protected volatile Integer mMaxSize;
+	protected Integer mHits = 0;
+	protected Integer mMisses = 0;
+	protected Long mEpoch = 0L;
+	
+	/**
+	 * Internal class used to store each cached result
+	 */
+	protected static class CacheEntry {
+		public final Result result;
+		public final long expires;
+		public final String[] paths;
+		
+		public CacheEntry(Result result, long expires, String[] paths) {
+			this.result = result;
+			this.expires = expires;
+			this.paths = paths;
+		}
+	}
+	
+	/**
+	 * Create a new cache
+	 * 
+	 * @param maxSize
+	 *     The max number of results to keep
+	 */
+	public ResultCache(Integer maxSize) {
+		mMaxSize = maxSize;
+		mEntries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				return size() > mMaxSize;
+			}
+		};
+	}
+	
+	/**
+	 * Get a copy of a cached result
+	 * 
+	 * @param key
+	 *     The key that the result was stored with
+	 * 
+	 * @return
+	 *     The result or NULL if it is not cached or has expired
+	 */
+	public Result get(String key) {
+		synchronized (mEntries) {
+			CacheEntry entry = mEntries.get(key);
+			
+			if (entry != null && entry.expires < System.currentTimeMillis()) {
+				mEntries.remove(key);
+				entry = null;
+			}
+			
+			if (entry == null) {
+				mMisses += 1; return null;
+			}
+			
+			mHits += 1;
+			
+			return entry.result.copy();
+		}
+	}
+	
+	/**
+	 * Add a result to the cache. The cache keeps it's own copy, so the parsed instance can still be changed by the caller.
+	 * 
+	 * @param key
+	 *     A key identifying the execution, for example from {@link Shell.StreamCollector#getSharedKey()}
+	 * 
+	 * @param result
+	 *     The result to store
+	 * 
+	 * @param ttl
+	 *     The time in milliseconds that the result is valid
+	 */
+	public void put(String key, Result result, Integer ttl) {
+		put(key, result, ttl, null);
+	}
+	
+	/**
+	 * Add a result to the cache, unless something has been invalidated since <code>epoch</code> was read using {@link #getEpoch()}. 
+	 * This should be used for results that was executed after checking the cache, as a path might have been changed while the 
+	 * command was running, in which case the result could already be outdated.
+	 * 
+	 * @param key
+	 *     A key identifying the execution, for example from {@link Shell.StreamCollector#getSharedKey()}
+	 * 
+	 * @param result
+	 *     The result to store
+	 * 
+	 * @param ttl
+	 *     The time in milliseconds that the result is valid
+	 * 
+	 * @param epoch
+	 *     The value from {@link #getEpoch()} before the command was executed, or NULL to always store the result
+	 */
+	public void put(String key, Result result, Integer ttl, Long epoch) {
+		if (result != null && ttl > 0 && mMaxSize > 0) {
+			List<String> paths = new ArrayList<String>();
+			Matcher matcher = oPatternPathSearch.matcher(key);
+			
+			while (matcher.find()) {
+				paths.add(matcher.group(1));
+			}
+			
+			synchronized (mEntries) {
+				if (epoch != null && !epoch.equals(mEpoch)) {
+					if(Common.DEBUG)Log.d(TAG, "put: The cache was invalidated during the execution, not storing the result"); return;
+				}
+				
+				mEntries.put(key, new CacheEntry(result.copy(), System.currentTimeMillis() + ttl, paths.toArray(new String[paths.size()])));
+			}
+		}
+	}
+	
+	/**
+	 * Remove all results that depend on a path. This includes results for the path itself, for anything inside it
+	 * and for any of it's parent directories.
+	 * 
+	 * @param path
+	 *     An absolute path or NULL to remove everything
+	 */
+	public void invalidate(String path) {
+		synchronized (mEntries) {
+			mEpoch += 1;
+			
+			if (path == null) {
+				mEntries.clear(); return;
+			}
+			
+			Iterator<CacheEntry> iterator = mEntries.values().iterator();
+			
+			while (iterator.hasNext()) {
+				for (String current : iterator.next().paths) {
+					if (current.equals(path) || current.startsWith(path + "/") || path.startsWith(current + "/")) {
+						if(Common.DEBUG)Log.d(TAG, "invalidate: Removing cached result for '" + current + "'");
+						
+						iterator.remove(); break;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Remove all results from the cache
+	 */
+	public void clear() {
+		invalidate(null);
+	}
+	
+	/**
+	 * Change the max number of results to keep.
+	 * If this is set to '0', nothing will be cached.
+	 */
+	public void setMaxSize(Integer maxSize) {
+		synchronized (mEntries) {
+			mMaxSize = maxSize >= 0 ? maxSize : 0;
+			
+			Iterator<String> iterator = mEntries.keySet().iterator();
+			
+			while (mEntries.size() > mMaxSize && iterator.hasNext()) {
+				iterator.next();
+				iterator.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Get the max number of results to keep
+	 */
+	public Integer getMaxSize() {
+		return mMaxSize;
+	}
+	
+	/**
+	 * Get the number of results currently in the cache, including expired ones that has not yet been removed
+	 */
+	public Integer size() {
+		synchronized (mEntries) {
+			return mEntries.size();
+		}
+	}
+	
+	/**
+	 * Get the current invalidation count. This changes each time {@link #invalidate(String)} or {@link #clear()} is called.
+	 * 
+	 * @see #put(String, Result, Integer, Long)
+	 */
+	public Long getEpoch() {
+		synchronized (mEntries) {
+			return mEpoch;
+		}
+	}
+	
+	/**
+	 * Get the number of lookups that was served from the cache
+	 */
+	public Integer getHitCount() {
+		synchronized (mEntries) {
+			return mHits;
+		}
+	}
+	
+	/**
+	 * Get the number of lookups that was not in the cache or had expired
+	 */
+	public Integer getMissCount() {
+		synchronized (mEntries) {
+			return mMisses;
+		}
+	}
+}
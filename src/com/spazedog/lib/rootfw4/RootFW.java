@@ -19,14 +19,27 @@
 
 package com.spazedog.lib.rootfw4;
 
+import java.io.Closeable;
+import java.io.OutputStream;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.spazedog.lib.rootfw4.Shell.Attempts;
 import com.spazedog.lib.rootfw4.Shell.OnShellConnectionListener;
+import com.spazedog.lib.rootfw4.Shell.OnShellLineListener;
 import com.spazedog.lib.rootfw4.Shell.OnShellResultListener;
+import com.spazedog.lib.rootfw4.Shell.OnShellResultsListener;
 import com.spazedog.lib.rootfw4.Shell.OnShellValidateListener;
 import com.spazedog.lib.rootfw4.Shell.Result;
+import com.spazedog.lib.rootfw4.Shell.ResultFuture;
 import com.spazedog.lib.rootfw4.Shell.StreamCollector;
 import com.spazedog.lib.rootfw4.utils.Device;
 import com.spazedog.lib.rootfw4.utils.Device.Process;
@@ -46,8 +59,40 @@ import com.spazedog.lib.rootfw4.utils.io.FileWriter;
 public class RootFW {
 	
 	protected static volatile Shell mShell;
-	protected static volatile Integer mLockCount = 0;
+	protected static final AtomicInteger mLockCount = new AtomicInteger();
+	protected static final AtomicInteger mLockGeneration = new AtomicInteger();
 	protected static final Object mLock = new Object();
+	protected static final Object mConnectingLock = new Object();
+	protected static final Object mRaceLock = new Object();
+	protected static FutureTask<Shell> mRace;
+	
+	/**
+	 * Used as lock count while {@link #disconnect(Boolean)} is destroying the shell, which stops new leases until it is done
+	 */
+	protected static final Integer LOCK_CLOSING = Integer.MIN_VALUE;
+	
+	/**
+	 * Used by the static methods while there is no connection, so that they return the same as a disconnected {@link Shell} would
+	 */
+	protected static final Shell mDisconnected = new Shell();
+	
+	protected static volatile FutureTask<Boolean> mConnecting;
+	
+	protected static volatile Integer mPoolMinSize = 1;
+	protected static volatile Integer mPoolMaxSize = 1;
+	protected static volatile Integer mPoolIdleTimeout = 30000;
+	
+	/**
+	 * The time in milliseconds that the user has to answer the superuser prompt, before falling back to a regular user shell
+	 */
+	public static Integer ROOT_PROMPT_TIMEOUT = 60000;
+	
+	/**
+	 * Settings made using the static methods are kept here as well, so that they are not lost on {@link #mDisconnected} 
+	 * while there is no connection, and so that they are applied again to each new connection
+	 */
+	protected static volatile Integer mTimeout;
+	protected static volatile ShellTracer mTracer;
 	
 	protected static Set<OnConnectionListener> mListeners = new HashSet<OnConnectionListener>();
 	
@@ -63,6 +108,40 @@ public class RootFW {
 		public void onShellConnect();
 	}
 	
+	/**
+	 * A lease on the global shell connection, which is acquired using {@link #acquire()}. <br /><br />
+	 * 
+	 * As long as a lease is open, the connection cannot be destroyed using {@link #disconnect()}. 
+	 * Closing the lease releases it, which can be done using try-with-resources where available. Closing it more than once has no effect.
+	 */
+	public static class Lease implements Closeable {
+		protected final Shell mShell;
+		protected final Integer mGeneration;
+		protected final AtomicBoolean mClosed = new AtomicBoolean(false);
+		
+		protected Lease(Shell shell, Integer generation) {
+			mShell = shell;
+			mGeneration = generation;
+		}
+		
+		/**
+		 * Get the shell that this lease was acquired for
+		 */
+		public Shell getShell() {
+			return mShell;
+		}
+		
+		/**
+		 * Release this lease
+		 */
+		@Override
+		public void close() {
+			if (mClosed.compareAndSet(false, true)) {
+				release(mGeneration);
+			}
+		}
+	}
+	
 	/**
 	 * Create a new connection to the global shell.<br /><br />
 	 * 
@@ -73,19 +152,74 @@ public class RootFW {
 	 *     True if the shell was connected successfully
 	 */
 	public static Boolean connect() {
+		Shell shell = mShell;
+		
+		/*
+		 * Most calls are made while already connected, which does not need the lock
+		 */
+		if (shell != null && shell.isConnected()) {
+			return true;
+		}
+		
+		/*
+		 * The race can take as long as the user needs to answer the superuser prompt, 
+		 * so it is not done while holding the lock used by disconnect(), leases and listeners. 
+		 * Callers that arrive while it is running wait for the same race rather than starting another one.
+		 */
+		FutureTask<Shell> race = null;
+		boolean owner = false;
+		
+		synchronized(mRaceLock) {
+			if ((race = mRace) == null) {
+				mRace = race = new FutureTask<Shell>(new Callable<Shell>(){
+					@Override
+					public Shell call() {
+						return raceShell();
+					}
+				});
+				
+				owner = true;
+			}
+		}
+		
+		if (owner) {
+			race.run();
+		}
+		
+		try {
+			shell = race.get();
+		
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt(); return false;
+		
+		} catch (ExecutionException e) {
+			shell = null;
+		}
+		
 		synchronized(mLock) {
-			if (mShell == null || !mShell.isConnected()) {
-				mLockCount = 0;
-				mShell = new Shell(true);
+			synchronized(mRaceLock) {
+				if (mRace != race) {
+					/*
+					 * Another caller of the same race has already installed the result
+					 */
+					return mShell != null && mShell.isConnected();
+				}
+				
+				mRace = null;
+			}
+			
+			if (shell != null) {
+				mShell = shell;
+				
+				applySettings(shell);
 				
 				/*
-				 * Fallback to a regular user shell
+				 * Only the shell that won the race is allowed to probe, 
+				 * so that a user shell does not fill the registry while root is still being requested
 				 */
-				if (!mShell.isConnected()) {
-					mShell = new Shell(false);
-				}
+				shell.requestProbe();
 				
-				mShell.addShellConnectionListener(new OnShellConnectionListener(){
+				shell.addShellConnectionListener(new OnShellConnectionListener(){
 					@Override
 					public void onShellDisconnect() {
 						for (OnConnectionListener listener : mListeners) {
@@ -99,7 +233,191 @@ public class RootFW {
 				}
 			}
 			
-			return mShell.isConnected();
+			return shell != null && shell.isConnected();
+		}
+	}
+	
+	/**
+	 * Start connecting to the global shell on a background thread and return right away. 
+	 * This can be called as early as possible, like from <code>Application.onCreate()</code>, 
+	 * so that the connection is ready once the first command is executed. <br /><br />
+	 * 
+	 * The static execute methods wait for a connection that is still being established, 
+	 * but they do not start one themselves. Calling this more than once while connecting returns the same {@link Future}.
+	 * 
+	 * @see #connect()
+	 * 
+	 * @return 
+	 *     A {@link Future} that returns the same as {@link #connect()} once the connection has been established
+	 */
+	public static Future<Boolean> connectAsync() {
+		synchronized(mConnectingLock) {
+			FutureTask<Boolean> task = mConnecting;
+			
+			if (task == null || (task.isDone() && !isConnected())) {
+				task = new FutureTask<Boolean>(new Callable<Boolean>(){
+					@Override
+					public Boolean call() {
+						return connect();
+					}
+				});
+				
+				mConnecting = task;
+				
+				Thread thread = new Thread(task, "RootFW_Connect");
+				thread.setDaemon(true);
+				thread.start();
+			}
+			
+			return task;
+		}
+	}
+	
+	/**
+	 * Internal method used to connect the global shell. A regular user shell is connected 
+	 * on a background thread while root is being requested, so that it is ready right away if root is denied. 
+	 * It is destroyed again if root is obtained. Neither shell is used for anything that probes the {@link Capabilities} registry here, 
+	 * that is left to {@link #connect()} once the winner is known.
+	 */
+	protected static Shell raceShell() {
+		final AtomicReference<Shell> fallback = new AtomicReference<Shell>();
+		
+		FutureTask<Shell> task = new FutureTask<Shell>(new Callable<Shell>(){
+			@Override
+			public Shell call() {
+				Shell shell = createShell(false);
+				
+				/*
+				 * The root shell won the race, so this one is not needed
+				 */
+				if (!fallback.compareAndSet(null, shell)) {
+					shell.destroy();
+				}
+				
+				return shell;
+			}
+		});
+		
+		Thread thread = new Thread(task, "RootFW_Fallback");
+		thread.setDaemon(true);
+		thread.start();
+		
+		Shell shell = createShell(true);
+		
+		if (verifyShell(shell)) {
+			if (!fallback.compareAndSet(null, mDisconnected)) {
+				fallback.get().destroy();
+			}
+			
+			return shell;
+		}
+		
+		shell.destroy();
+		
+		try {
+			return task.get();
+		
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		
+		} catch (ExecutionException e) {}
+		
+		/*
+		 * Fallback to a regular user shell
+		 */
+		return createShell(false);
+	}
+	
+	/**
+	 * Internal method used to apply the settings made using the static methods to a new connection
+	 */
+	protected static void applySettings(Shell shell) {
+		Integer timeout = mTimeout;
+		ShellTracer tracer = mTracer;
+		
+		if (timeout != null) {
+			shell.setTimeout(timeout);
+		}
+		
+		if (tracer != null) {
+			shell.setTracer(tracer);
+		}
+	}
+	
+	/**
+	 * Internal method used to check that a new shell is usable. Some su binaries start fine and then exit 
+	 * once root has been denied, so a connected process alone does not mean that root was obtained. 
+	 * The user might take a while to answer the superuser prompt, so this waits up to {@link #ROOT_PROMPT_TIMEOUT}.
+	 */
+	protected static Boolean verifyShell(Shell shell) {
+		if (shell.isConnected()) {
+			Integer timeout = shell.getTimeout();
+			
+			try {
+				shell.setTimeout(ROOT_PROMPT_TIMEOUT);
+				
+				Result result = shell.execute("echo 1");
+				
+				return result != null && result.wasSuccessful();
+			
+			} finally {
+				shell.setTimeout(timeout);
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Internal method used to create the global shell. This will be a {@link ShellPool} 
+	 * if more than one connection has been allowed using {@link #setPoolSize(Integer, Integer)}
+	 */
+	protected static Shell createShell(Boolean requestRoot) {
+		if (mPoolMaxSize > 1) {
+			ShellPool pool = new ShellPool(requestRoot, mPoolMinSize, mPoolMaxSize);
+			pool.setIdleTimeout(mPoolIdleTimeout);
+			
+			return pool;
+		}
+		
+		return new Shell(requestRoot);
+	}
+	
+	/**
+	 * Allow the global shell to use a pool of connections rather than a single one. 
+	 * This way a long running command will not stall quick commands sent from other threads. 
+	 * The change takes effect the next time a connection is established using {@link #connect()}.<br /><br />
+	 * 
+	 * Parsing '1' as <code>maxSize</code> will use a regular single connection, which is the default. 
+	 * 
+	 * @see ShellPool
+	 * 
+	 * @param minSize
+	 *     The number of connections that should always be kept open
+	 *     
+	 * @param maxSize
+	 *     The max number of connections that the pool is allowed to grow to
+	 */
+	public static void setPoolSize(Integer minSize, Integer maxSize) {
+		synchronized(mLock) {
+			mPoolMinSize = minSize > 0 ? minSize : 1;
+			mPoolMaxSize = maxSize > mPoolMinSize ? maxSize : mPoolMinSize;
+		}
+	}
+	
+	/**
+	 * Change the time in milliseconds that pooled connections above the minimum size are allowed to stay idle before being closed. 
+	 * 
+	 * @see #setPoolSize(Integer, Integer)
+	 * @see ShellPool#setIdleTimeout(Integer)
+	 */
+	public static void setPoolIdleTimeout(Integer timeout) {
+		synchronized(mLock) {
+			mPoolIdleTimeout = timeout;
+			
+			if (mShell instanceof ShellPool) {
+				((ShellPool) mShell).setIdleTimeout(timeout);
+			}
 		}
 	}
 	
@@ -119,10 +437,103 @@ public class RootFW {
 	 */
 	public static void disconnect(Boolean force) {
 		synchronized(mLock) {
-			if (mLockCount == 0 || force) {
-				mLockCount = 0;
-				mShell.destroy();
-				mShell = null;
+			/*
+			 * Leases are acquired without the lock, so the count is swapped for LOCK_CLOSING in one step. 
+			 * This makes sure that no lease is acquired between checking the count and destroying the shell.
+			 */
+			if (force) {
+				mLockCount.set(LOCK_CLOSING);
+			
+			} else if (!mLockCount.compareAndSet(0, LOCK_CLOSING)) {
+				return;
+			}
+			
+			mLockGeneration.incrementAndGet();
+			
+			try {
+				if (mShell != null) {
+					mShell.destroy();
+					mShell = null;
+				}
+			
+			} finally {
+				mLockCount.set(0);
+			}
+		}
+	}
+	
+	/**
+	 * Acquire a lease on the global shell, connecting to it if needed. <br /><br />
+	 * 
+	 * As long as the lease is open, the connection cannot be destroyed using {@link #disconnect()}. 
+	 * If the connection is already established, this does not need any locking. 
+	 * 
+	 * <code>try (Lease lease = RootFW.acquire()) { lease.getShell().execute("...") }</code>
+	 * 
+	 * @return
+	 *     A {@link Lease} that must be closed when no longer needed, or NULL if no connection could be established
+	 */
+	public static Lease acquire() {
+		Integer generation = retain();
+		Shell shell = mShell;
+		
+		if ((shell == null || !shell.isConnected()) && connect()) {
+			shell = mShell;
+		}
+		
+		if (shell != null && shell.isConnected()) {
+			return new Lease(shell, generation);
+		}
+		
+		release(generation);
+		
+		return null;
+	}
+	
+	/**
+	 * Internal method used to add one lock to the count. This only waits if {@link #disconnect(Boolean)} is currently destroying the shell.
+	 * 
+	 * @return
+	 *     The generation that the lock belongs to
+	 */
+	protected static Integer retain() {
+		while (true) {
+			int count = mLockCount.get();
+			
+			if (count >= 0) {
+				int generation = mLockGeneration.get();
+				
+				if (mLockCount.compareAndSet(count, count + 1)) {
+					return generation;
+				}
+			
+			} else if (Thread.holdsLock(mLock)) {
+				/*
+				 * Called from a disconnect listener while the shell is being destroyed. 
+				 * The lock belongs to the old connection, so it's release is ignored.
+				 */
+				return mLockGeneration.get() - 1;
+			
+			} else {
+				synchronized(mLock) {
+					/*
+					 * Wait for the disconnect to finish
+					 */
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Internal method used to remove one lock from the count. 
+	 * Locks from before a disconnect was already dropped, and are ignored.
+	 */
+	protected static void release(Integer generation) {
+		while (generation == null || generation == mLockGeneration.get()) {
+			int count = mLockCount.get();
+			
+			if (count <= 0 || mLockCount.compareAndSet(count, count - 1)) {
+				return;
 			}
 		}
 	}
@@ -132,11 +543,10 @@ public class RootFW {
 	 * As long as there are 1 or more locks on this connection, it cannot be destroyed using {@link #disconnect()}
 	 * 
 	 * @see #unlock()
+	 * @see #acquire()
 	 */
 	public static void lock() {
-		synchronized(mLock) {
-			mLockCount += 1;
-		}
+		retain();
 	}
 	
 	/**
@@ -145,23 +555,47 @@ public class RootFW {
 	 * @see #lock()
 	 */
 	public static void unlock() {
-		synchronized(mLock) {
-			if (mLockCount > 0) {
-				mLockCount -= 1;
-				
-			} else {
-				mLockCount = 0;
-			}
-		}
+		release(null);
 	}
 	
 	/**
-	 * Checks if there are any active locks on the connection.
+	 * Checks if there are any active locks or leases on the connection.
 	 */
 	public static Boolean isLocked() {
-		synchronized(mLock) {
-			return mLockCount == 0;
+		return mLockCount.get() > 0;
+	}
+	
+	/**
+	 * Internal method used by the static methods to get the current shell. 
+	 * The field is only read once, so that a concurrent {@link #disconnect()} cannot change it halfway through a call.
+	 * 
+	 * @return
+	 *     The global shell, or a disconnected {@link Shell} if there is no connection
+	 */
+	protected static Shell getShell() {
+		Shell shell = mShell;
+		
+		if (shell == null || !shell.isConnected()) {
+			FutureTask<Boolean> task = mConnecting;
+			
+			/*
+			 * Wait for a connection started by connectAsync(). 
+			 * Listeners invoked while connecting already hold the lock, and should not wait for themselves.
+			 */
+			if (task != null && !task.isDone() && !Thread.holdsLock(mLock)) {
+				try {
+					task.get();
+				
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				
+				} catch (ExecutionException e) {}
+				
+				shell = mShell;
+			}
 		}
+		
+		return shell != null ? shell : mDisconnected;
 	}
 	
 	/**
@@ -190,174 +624,285 @@ public class RootFW {
 	 * @see Shell#execute(String)
 	 */
 	public static Result execute(String command) {
-		return mShell.execute(command);
+		return getShell().execute(command);
+	}
+	
+	/**
+	 * @see Shell#executeShared(String)
+	 */
+	public static Result executeShared(String command) {
+		return getShell().executeShared(command);
+	}
+	
+	/**
+	 * @see Shell#executeCached(String, Integer)
+	 */
+	public static Result executeCached(String command, Integer ttl) {
+		return getShell().executeCached(command, ttl);
+	}
+	
+	/**
+	 * @see Shell#execute(String, Integer)
+	 */
+	public static Result execute(String command, Integer priority) {
+		return getShell().execute(command, priority);
 	}
 	
 	/**
 	 * @see Shell#execute(String[])
 	 */
 	public static Result execute(String[] commands) {
-		return mShell.execute(commands);
+		return getShell().execute(commands);
 	}
 	
 	/**
 	 * @see Shell#execute(String[], Integer[], OnShellValidateListener)
 	 */
 	public static Result execute(String[] commands, Integer[] resultCodes, OnShellValidateListener validater) {
-		return mShell.execute(commands, resultCodes, validater);
+		return getShell().execute(commands, resultCodes, validater);
 	}
 	
 	/**
 	 * @see Shell#execute(StreamCollector)
 	 */
 	public static Result execute(StreamCollector collector) {
-		return mShell.execute(collector);
+		return getShell().execute(collector);
+	}
+	
+	/**
+	 * @see Shell#executeBatch(List)
+	 */
+	public static List<Result> executeBatch(List<String> commands) {
+		return getShell().executeBatch(commands);
+	}
+	
+	/**
+	 * @see Shell#executeStreaming(String, OnShellLineListener)
+	 */
+	public static Integer executeStreaming(String command, OnShellLineListener listener) {
+		return getShell().executeStreaming(command, listener);
+	}
+	
+	/**
+	 * @see Shell#executeBinary(String, OutputStream)
+	 */
+	public static Integer executeBinary(String command, OutputStream output) {
+		return getShell().executeBinary(command, output);
 	}
 	
 	/**
 	 * @see Shell#executeAsync(String, OnShellResultListener)
 	 */
-	public static void executeAsync(String command, OnShellResultListener listener) {
-		mShell.executeAsync(command, listener);
+	public static ResultFuture executeAsync(String command, OnShellResultListener listener) {
+		return getShell().executeAsync(command, listener);
+	}
+	
+	/**
+	 * @see Shell#executeAsync(String, Integer, OnShellResultListener)
+	 */
+	public static ResultFuture executeAsync(String command, Integer priority, OnShellResultListener listener) {
+		return getShell().executeAsync(command, priority, listener);
 	}
 	
 	/**
 	 * @see Shell#executeAsync(String[], OnShellResultListener)
 	 */
-	public static void executeAsync(String[] commands, OnShellResultListener listener) {
-		mShell.executeAsync(commands, listener);
+	public static ResultFuture executeAsync(String[] commands, OnShellResultListener listener) {
+		return getShell().executeAsync(commands, listener);
 	}
 	
 	/**
 	 * @see Shell#executeAsync(String[], Integer[], OnShellValidateListener, OnShellResultListener)
 	 */
-	public static void executeAsync(String[] commands, Integer[] resultCodes, OnShellValidateListener validater, OnShellResultListener listener) {
-		mShell.executeAsync(commands, resultCodes, validater, listener);
+	public static ResultFuture executeAsync(String[] commands, Integer[] resultCodes, OnShellValidateListener validater, OnShellResultListener listener) {
+		return getShell().executeAsync(commands, resultCodes, validater, listener);
 	}
 	
 	/**
 	 * @see Shell#executeAsync(StreamCollector, OnShellResultListener)
 	 */
-	public static void executeAsync(StreamCollector collector, OnShellResultListener listener) {
-		mShell.executeAsync(collector, listener);
+	public static ResultFuture executeAsync(StreamCollector collector, OnShellResultListener listener) {
+		return getShell().executeAsync(collector, listener);
+	}
+	
+	/**
+	 * @see Shell#executeAsync(List, OnShellResultsListener)
+	 */
+	public static List<ResultFuture> executeAsync(List<String> commands, OnShellResultsListener listener) {
+		return getShell().executeAsync(commands, listener);
 	}
 	
 	/**
 	 * @see Shell#isRoot()
 	 */
 	public static Boolean isRoot() {
-		return mShell.isRoot();
+		return getShell().isRoot();
 	}
 	
 	/**
 	 * @see Shell#isConnected()
 	 */
 	public static Boolean isConnected() {
-		return mShell != null && mShell.isConnected();
+		return getShell().isConnected();
 	}
 	
 	/**
 	 * @see Shell#getTimeout()
 	 */
 	public static Integer getTimeout() {
-		return mShell.getTimeout();
+		Shell shell = getShell();
+		Integer timeout = mTimeout;
+		
+		return shell == mDisconnected && timeout != null ? timeout : shell.getTimeout();
 	}
 	
 	/**
+	 * Change the timeout of the global shell. While there is no connection, 
+	 * the timeout is kept and applied once {@link #connect()} has established one. 
+	 * It is also applied to each new connection after a disconnect.
+	 * 
 	 * @see Shell#setTimeout(Integer)
 	 */
 	public static void setTimeout(Integer timeout) {
-		mShell.setTimeout(timeout);
+		if (timeout >= 0) {
+			Shell shell = mShell;
+			
+			mTimeout = timeout;
+			
+			if (shell != null) {
+				shell.setTimeout(timeout);
+			}
+		}
+	}
+	
+	/**
+	 * Get the metrics of the current connection. Each connection records it's own numbers, 
+	 * so these start over after a reconnect. 
+	 * 
+	 * @see Shell#getMetrics()
+	 * 
+	 * @return
+	 *     The metrics of the current connection, or <code>NULL</code> if there is no connection
+	 */
+	public static ShellMetrics getMetrics() {
+		Shell shell = getShell();
+		
+		return shell != mDisconnected ? shell.getMetrics() : null;
+	}
+	
+	/**
+	 * Record spans of the work done by the global shell. Like {@link #setTimeout(Integer)}, 
+	 * the tracer is kept while there is no connection and applied to each new connection.
+	 * 
+	 * @see Shell#setTracer(ShellTracer)
+	 */
+	public static void setTracer(ShellTracer tracer) {
+		Shell shell = mShell;
+		
+		mTracer = tracer;
+		
+		if (shell != null) {
+			shell.setTracer(tracer);
+		}
+	}
+	
+	/**
+	 * @see Shell#getTracer()
+	 */
+	public static ShellTracer getTracer() {
+		Shell shell = getShell();
+		
+		return shell != mDisconnected ? shell.getTracer() : mTracer;
 	}
 	
 	/**
 	 * @see Shell#getBinary(String)
 	 */
 	public static String findCommand(String bin) {
-		return mShell.findCommand(bin);
+		return getShell().findCommand(bin);
 	}
 	
 	/**
 	 * @see Shell#createAttempts(String)
 	 */
 	public static Attempts createAttempts(String command) {
-		return mShell.createAttempts(command);
+		return getShell().createAttempts(command);
 	}
 	
 	/**
 	 * @see Shell#getFileReader(String)
 	 */
 	public static FileReader getFileReader(String file) {
-		return mShell.getFileReader(file);
+		return getShell().getFileReader(file);
 	}
 	
 	/**
 	 * @see Shell#getFileWriter(String, Boolean)
 	 */
 	public static FileWriter getFileWriter(String file, Boolean append) {
-		return mShell.getFileWriter(file, append);
+		return getShell().getFileWriter(file, append);
 	}
 	
 	/**
 	 * @see Shell#getFile(String)
 	 */
 	public static File getFile(String file) {
-		return mShell.getFile(file);
+		return getShell().getFile(file);
 	}
 	
 	/**
 	 * @see Shell#getFilesystem()
 	 */
 	public static Filesystem getFilesystem() {
-		return mShell.getFilesystem();
+		return getShell().getFilesystem();
 	}
 	
 	/**
 	 * @see Shell#getDisk(String)
 	 */
 	public static Disk getDisk(String disk) {
-		return mShell.getDisk(disk);
+		return getShell().getDisk(disk);
 	}
 	
 	/**
 	 * @see Shell#getDevice()
 	 */
 	public static Device getDevice() {
-		return mShell.getDevice();
+		return getShell().getDevice();
 	}
 	
 	/**
 	 * @see Shell#getProcess(String)
 	 */
 	public static Process getProcess(String process) {
-		return mShell.getProcess(process);
+		return getShell().getProcess(process);
 	}
 	
 	/**
 	 * @see Shell#getProcess(Integer)
 	 */
 	public static Process getProcess(Integer pid) {
-		return mShell.getProcess(pid);
+		return getShell().getProcess(pid);
 	}
 	
 	/**
 	 * @see Shell#getMemory()
 	 */
 	public static Memory getMemory() {
-		return mShell.getMemory();
+		return getShell().getMemory();
 	}
 	
 	/**
 	 * @see Shell#getCompCache()
 	 */
 	public static CompCache getCompCache() {
-		return mShell.getCompCache();
+		return getShell().getCompCache();
 	}
 	
 	/**
 	 * @see Shell#getSwap(String device)
 	 */
 	public static Swap getSwap(String device) {
-		return mShell.getSwap(device);
+		return getShell().getSwap(device);
 	}
 }
@@ -21,19 +21,38 @@ package com.spazedog.lib.rootfw4;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import android.os.Bundle;
 import android.util.Log;
 
+import com.spazedog.lib.rootfw4.ShellStreamer.ByteStreamListener;
 import com.spazedog.lib.rootfw4.ShellStreamer.ConnectionListener;
+import com.spazedog.lib.rootfw4.ShellStreamer.ErrorStreamListener;
 import com.spazedog.lib.rootfw4.ShellStreamer.StreamListener;
 import com.spazedog.lib.rootfw4.containers.Data;
 import com.spazedog.lib.rootfw4.utils.Device;
@@ -56,7 +75,19 @@ public class Shell {
 	public static final String TAG = Common.TAG + ".Shell";
 	
 	protected static Set<Shell> mInstances = Collections.newSetFromMap(new WeakHashMap<Shell, Boolean>());
-	protected static Map<String, String> mBinaries = new HashMap<String, String>();
+	protected static Map<String, String> mBinaryPreference = Collections.synchronizedMap(new HashMap<String, String>());
+	
+	protected static volatile ExecutorService mAsyncExecutor;
+	protected static final Object mAsyncLock = new Object();
+	
+	/**
+	 * The max number of threads used by the default executor for asynchronous executions
+	 * 
+	 * @see #setAsyncExecutor(ExecutorService)
+	 */
+	public static Integer ASYNC_THREADS = 4;
+	
+	protected final static Pattern oPatternVerbSearch = Pattern.compile("^[\\s(!{]*(?:%binary\\s+)?([A-Za-z0-9_.\\[-]+)");
 	
 	protected Set<OnShellBroadcastListener> mBroadcastRecievers = Collections.newSetFromMap(new WeakHashMap<OnShellBroadcastListener, Boolean>());
 	protected Set<OnShellConnectionListener> mConnectionRecievers = new HashSet<OnShellConnectionListener>();
@@ -66,10 +97,24 @@ public class Shell {
 	protected Boolean mAllowDisconnect = false;
 	protected Boolean mIsConnected = false;
 	protected Boolean mIsRoot = false;
+	protected volatile Boolean mProbeRequested = false;
 	protected List<String> mOutput = new ArrayList<String>();
 	protected Integer mResultCode = 0;
 	protected Integer mShellTimeout = 15000;
+	protected Integer mCancelTimeout = 2000;
 	protected Set<Integer> mResultCodes = new HashSet<Integer>();
+	protected Boolean mScriptedAttempts = false;
+	protected final Map<String, SharedExecution> mSharedExecutions = new HashMap<String, SharedExecution>();
+	protected final ResultCache mResultCache = new ResultCache(64);
+	protected final Set<StreamCollector> mStarted = new HashSet<StreamCollector>();
+	protected final Object mReconnectLock = new Object();
+	protected volatile Integer mConnectionGeneration = 0;
+	protected Boolean mReplayOnReconnect = false;
+	protected Integer mReconnectAttempts = 1;
+	protected Integer mReconnectDelay = 500;
+	protected Integer mReplayLimit = 3;
+	protected ShellMetrics mMetrics;
+	protected volatile ShellTracer mTracer;
 	
 	/**
 	 * This interface is used internally across utility classes.
@@ -91,6 +136,36 @@ public class Shell {
 		public void onShellResult(Result result);
 	}
 	
+	/**
+	 * This interface is for use with {@link Shell#executeAsync(List, OnShellResultsListener)} and {@link ResultFuture#whenAll(List, OnShellResultsListener)}.
+	 */
+	public static interface OnShellResultsListener {
+		/**
+		 * Called once all of the asynchronous executions in a group has finished.
+		 * 
+		 * @param results
+		 *     The results in the same order as the executions. Cancelled executions are represented by NULL
+		 */
+		public void onShellResults(List<Result> results);
+	}
+	
+	/**
+	 * This interface is for use with {@link Shell#executeStreaming(String, OnShellLineListener)}.
+	 */
+	public static interface OnShellLineListener {
+		/**
+		 * Called for each line of output, as soon as it has been read from the shell. 
+		 * The shell will not be read any further until this method returns, so a slow consumer will also slow down the command.
+		 * 
+		 * @param line
+		 *     The current output line
+		 *     
+		 * @return
+		 *     True to continue, or False to stop the command and ignore the rest of it's output
+		 */
+		public Boolean onShellLine(String line);
+	}
+	
 	/**
 	 * This interface is for use with the execute methods. It can be used to validate an attempt command, if that command 
 	 * cannot be validated by result code alone. 
@@ -135,13 +210,19 @@ public class Shell {
 		private Integer mResultCode;
 		private Integer[] mValidResults;
 		private Integer mCommandNumber;
+		private String[] mErrors;
 		
 		public Result(String[] lines, Integer result, Integer[] validResults, Integer commandNumber) {
+			this(lines, result, validResults, commandNumber, null);
+		}
+		
+		public Result(String[] lines, Integer result, Integer[] validResults, Integer commandNumber, String[] errors) {
 			super(lines);
 			
 			mResultCode = result;
 			mValidResults = validResults;
 			mCommandNumber = commandNumber;
+			mErrors = errors != null ? errors : new String[0];
 		}
 
 		/**
@@ -171,6 +252,24 @@ public class Shell {
 		public Integer getCommandNumber() {
 			return mCommandNumber;
 		}
+		
+		/**
+		 * Get the lines that the command printed to the error stream (stderr). 
+		 * This is only available when the {@link ShellStreamer} separates errors from the output, 
+		 * otherwise the errors are part of the regular output lines and this returns an empty array. 
+		 * 
+		 * @see ShellStreamer#setSeparateErrors(boolean)
+		 */
+		public String[] getErrors() {
+			return mErrors;
+		}
+		
+		/**
+		 * Internal method used to give each user of a shared or cached result it's own instance
+		 */
+		protected Result copy() {
+			return new Result(mLines != null ? mLines.clone() : null, mResultCode, mValidResults, mCommandNumber, mErrors);
+		}
 	}
 	
 	/**
@@ -179,7 +278,7 @@ public class Shell {
 	 * But should this class be extended and parsed to methods in {@link Shell}, it might be a good idea to review the source 
 	 * for it first. It is used to make synchronized calls to {@link ShellStreamer} that normally works asynchronized.
 	 */
-	public static class StreamCollector implements StreamListener {
+	public static class StreamCollector implements ErrorStreamListener {
 		protected final Object mLock = new Object();
 		
 		protected String[] mAttempts;
@@ -187,9 +286,14 @@ public class Shell {
 		protected OnShellValidateListener mListener;
 		
 		protected volatile boolean mHasResult = false;
+		protected volatile boolean mCancelled = false;
+		protected volatile boolean mDisconnected = false;
+		protected volatile boolean mIdempotent = false;
 		protected volatile int mAttemptNumber = -1;
 		protected volatile int mResultCode = 0;
+		protected volatile int mPriority = ShellStreamer.PRIORITY_NORMAL;
 		protected volatile List<String> mOutputLines = new ArrayList<String>();
+		protected volatile List<String> mErrorLines = new ArrayList<String>();
 		
 		public StreamCollector(String[] attempts, Set<Integer> resultCodes, OnShellValidateListener validater) {
 			mAttempts = attempts;
@@ -206,10 +310,11 @@ public class Shell {
 		public void onStreamStart(ShellStreamer shell) {
 			mAttemptNumber += 1;
 			mOutputLines.clear();
+			mErrorLines.clear();
 			
 			if(Common.DEBUG)Log.d(TAG, "onStreamStart: Executing attempt " + (mAttemptNumber + 1) + " of " + mAttempts.length);
 			
-			if (mAttemptNumber < mAttempts.length) {
+			if (!mCancelled && mAttemptNumber < mAttempts.length) {
 				if(Common.DEBUG)Log.d(TAG, "onStreamStart: Executing the command '" + mAttempts[ mAttemptNumber ] + "'");
 				
 				shell.writeLine(mAttempts[ mAttemptNumber ]);
@@ -224,14 +329,25 @@ public class Shell {
 			
 			mOutputLines.add(outputLine);
 		}
+		
+		@Override
+		public void onStreamError(ShellStreamer shell, String errorLine) {
+			if(Common.DEBUG)Log.d(TAG, "onStreamError: " + (errorLine.length() > 50 ? errorLine.substring(0, 50) + " ..." : errorLine));
+			
+			mErrorLines.add(errorLine);
+		}
 
 		@Override
 		public void onStreamStop(ShellStreamer shell, int resultCode) {
 			if(Common.DEBUG)Log.d(TAG, "onStreamStop: The command finished with the result code '" + resultCode + "'");
 			
+			if (resultCode == ShellStreamer.RESULT_DISCONNECTED) {
+				releaseDisconnected(); return;
+			}
+			
 			mResultCode = resultCode;
 			
-			if (mAttemptNumber < mAttempts.length) {
+			if (!mCancelled && mAttemptNumber < mAttempts.length) {
 				if ((mListener != null && mListener.onShellValidate(mAttempts[ mAttemptNumber ], mResultCode, mOutputLines, mValidResults)) || mValidResults.contains(mResultCode)) {
 					/*
 					 * The validater might have it's own result code that is not in the array
@@ -246,6 +362,106 @@ public class Shell {
 			releaseResult();
 		}
 		
+		/**
+		 * Stop this collector from starting any more attempts. 
+		 * This does not stop a running command, use {@link ShellStreamer#cancelStream(StreamListener)} for that.
+		 */
+		public void cancel() {
+			mCancelled = true;
+		}
+		
+		/**
+		 * Check whether or not {@link #cancel()} has been called
+		 */
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+		
+		/**
+		 * Check whether or not the execution was stopped because the connection to the shell was lost
+		 */
+		public boolean isDisconnected() {
+			return mDisconnected;
+		}
+		
+		/**
+		 * Mark this collector as safe to execute more than once, meaning that it does not change anything on the device. 
+		 * Idempotent collectors are executed again after a reconnect, if this has been enabled using {@link Shell#setReplayOnReconnect(Boolean)}.
+		 */
+		public StreamCollector setIdempotent(boolean idempotent) {
+			mIdempotent = idempotent; return this;
+		}
+		
+		/**
+		 * Check whether or not this collector is safe to execute more than once
+		 * 
+		 * @see #setIdempotent(boolean)
+		 */
+		public boolean isIdempotent() {
+			return mIdempotent;
+		}
+		
+		/**
+		 * Release a waiting thread because the connection to the shell was lost
+		 */
+		protected void releaseDisconnected() {
+			if (!mHasResult) {
+				mDisconnected = true;
+				releaseResult();
+			}
+		}
+		
+		/**
+		 * Prepare this collector to be executed again after it was disconnected
+		 */
+		protected void reset() {
+			synchronized (mLock) {
+				mAttemptNumber = -1;
+				mResultCode = 0;
+				mOutputLines = new ArrayList<String>();
+				mErrorLines = new ArrayList<String>();
+				mDisconnected = false;
+				mHasResult = false;
+			}
+		}
+		
+		/**
+		 * Change the queue priority used when this collector is executed. 
+		 * This must be set before the collector is parsed to {@link Shell#execute(StreamCollector)}.
+		 * 
+		 * @param priority
+		 *     One of {@link ShellStreamer#PRIORITY_INTERACTIVE}, {@link ShellStreamer#PRIORITY_NORMAL} or {@link ShellStreamer#PRIORITY_BULK}
+		 */
+		public StreamCollector setPriority(int priority) {
+			mPriority = priority; return this;
+		}
+		
+		/**
+		 * Get the queue priority used when this collector is executed
+		 */
+		public int getPriority() {
+			return mPriority;
+		}
+		
+		/**
+		 * Get a key that identifies executions producing the same result as this one. 
+		 * This is used by {@link Shell#executeShared(StreamCollector)}, and NULL means that the collector cannot be shared. 
+		 * Collectors with a validate listener are never shared, as the listener belongs to a single caller.
+		 */
+		protected String getSharedKey() {
+			if (mListener == null) {
+				StringBuilder builder = new StringBuilder(getClass().getName());
+				
+				for (String attempt : mAttempts) {
+					builder.append('\n').append(attempt);
+				}
+				
+				return builder.append('\n').append(new TreeSet<Integer>(mValidResults)).toString();
+			}
+			
+			return null;
+		}
+		
 		protected void releaseResult() {
 			if (!mHasResult) {
 				mHasResult = true;
@@ -258,17 +474,17 @@ public class Shell {
 		
 		public boolean waitForResult(long timeout) {
 			synchronized(mLock) {
+				long timeoutMilis = timeout > 0 ? System.currentTimeMillis() + timeout : 0l;
+				
 				while (!mHasResult) {
-					long timeoutMilis = timeout > 0 ? System.currentTimeMillis() + timeout : 0l;
-					
 					try {
 						if(Common.DEBUG)Log.d(TAG, "waitForResult: Waiting for result to be released");
 						
-						mLock.wait(timeout);
+						mLock.wait(timeout > 0 ? Math.max(timeoutMilis - System.currentTimeMillis(), 1l) : 0l);
 						
 					} catch (InterruptedException e) {}
 					
-					if (timeout > 0 && (timeoutMilis - System.currentTimeMillis()) < 0) {
+					if (!mHasResult && timeout > 0 && (timeoutMilis - System.currentTimeMillis()) <= 0) {
 						if(Common.DEBUG)Log.d(TAG, "waitForResult: Result was not released. ShellStreamer timedout after " + (timeout / 1000) + " seconds");
 						
 						return false;
@@ -283,7 +499,7 @@ public class Shell {
 		
 		public Result getResult() {
 			if (mHasResult) {
-				return new Result(mOutputLines.toArray(new String[mOutputLines.size()]), mResultCode, mValidResults.toArray(new Integer[mValidResults.size()]), mAttemptNumber);
+				return new Result(mOutputLines.toArray(new String[mOutputLines.size()]), mResultCode, mValidResults.toArray(new Integer[mValidResults.size()]), mAttemptNumber, mErrorLines.toArray(new String[mErrorLines.size()]));
 			}
 			
 			return null;
@@ -291,127 +507,932 @@ public class Shell {
 	}
 	
 	/**
-	 * A class containing automatically created shell attempts and links to both {@link Shell#executeAsync(String[], Integer[], OnShellResultListener)} and {@link Shell#execute(String[], Integer[])} <br /><br />
-	 * 
-	 * All attempts are created based on {@link Common#BINARIES}. <br /><br />
-	 * 
-	 * Example: String("ls") would become String["ls", "busybox ls", "toolbox ls"] if {@link Common#BINARIES} equals String[null, "busybox", "toolbox"].<br /><br />
+	 * A {@link StreamCollector} that writes a whole list of commands to the shell in one go, 
+	 * each followed by it's own delimiter, and splits the output into one {@link Result} per command. 
 	 * 
-	 * You can also apply the keyword %binary if you need to apply the binaries to more than the beginning of a command. <br /><br />
-	 * 
-	 * Example: String("(%binary test -d '%binary pwd') || exit 1") would become String["(test -d 'pwd') || exit 1", "(busybox test -d 'busybox pwd') || exit 1", "(toolbox test -d 'toolbox pwd') || exit 1"]
-	 * 
-	 * @see Shell#createAttempts(String)
+	 * @see Shell#executeBatch(List)
 	 */
-	public class Attempts {
-		protected String[] mAttempts;
-		protected Integer[] mResultCodes;
-		protected OnShellValidateListener mValidateListener;
-		protected OnShellResultListener mResultListener;
+	public static class BatchCollector extends StreamCollector {
+		protected static String mBatchEnd = "EOB:a00c38d8:EOB";
 		
-		protected Attempts(String command) {
-			if (command != null) {
-				Integer pos = 0;
-				mAttempts = new String[ Common.BINARIES.length ];
-				
-				for (String binary : Common.BINARIES) {
-					if (command.contains("%binary ")) {
-						mAttempts[pos] = command.replaceAll("%binary ", (binary != null && binary.length() > 0 ? binary + " " : ""));
-						
-					} else {
-						mAttempts[pos] = (binary != null && binary.length() > 0 ? binary + " " : "") + command;
-					}
-					
-					pos += 1;
-				}
-			}
+		protected volatile List<Result> mResults = new ArrayList<Result>();
+		protected volatile List<List<String>> mSegments = new ArrayList<List<String>>();
+		protected volatile List<Integer> mSegmentCodes = new ArrayList<Integer>();
+		protected volatile List<List<String>> mErrorSegments = new ArrayList<List<String>>();
+		
+		public BatchCollector(String[] commands, Set<Integer> resultCodes) {
+			super(commands, resultCodes, null);
 		}
 		
-		public Attempts setValidateListener(OnShellValidateListener listener) {
-			mValidateListener = listener; return this;
+		@Override
+		protected String getSharedKey() {
+			return null;
 		}
 		
-		public Attempts setResultListener(OnShellResultListener listener) {
-			mResultListener = listener; return this;
+		@Override
+		public void onStreamStart(ShellStreamer shell) {
+			String[] output = new String[ mAttempts.length ];
+			boolean errors = shell.isSeparatingErrors();
+			
+			mAttemptNumber = 0;
+			mOutputLines = new ArrayList<String>();
+			mErrorLines = new ArrayList<String>();
+			mResults.clear();
+			mSegments.clear();
+			mSegmentCodes.clear();
+			mErrorSegments.clear();
+			
+			if(Common.DEBUG)Log.d(TAG, "onStreamStart: Executing a batch of " + mAttempts.length + " commands");
+			
+			for (int i=0; i < mAttempts.length; i++) {
+				/*
+				 * Errors are read separately, so they need their own delimiter in order to be split by command
+				 */
+				output[i] = mAttempts[i] + "\n" + "RFW_R=$?; " + (errors ? "echo " + mBatchEnd + ":" + i + " >&2; " : "") + "echo " + mBatchEnd + ":" + i + " $RFW_R\n";
+			}
+			
+			if (!mCancelled) {
+				shell.write(output);
+			}
+			
+			shell.stopStream();
 		}
 		
-		public Attempts setResultCodes(Integer... resultCodes) {
-			mResultCodes = resultCodes; return this;
+		@Override
+		public void onStreamInput(ShellStreamer shell, String outputLine) {
+			int pos = outputLine.indexOf(mBatchEnd);
+			
+			if (pos >= 0) {
+				int resultCode = 1;
+				
+				if (pos > 0) {
+					/*
+					 * The command did not end it's output with a line break
+					 */
+					mOutputLines.add(outputLine.substring(0, pos));
+				}
+				
+				try {
+					resultCode = Integer.parseInt(outputLine.substring(outputLine.indexOf(" ", pos)+1).trim());
+					
+				} catch (Throwable e) {}
+				
+				mSegments.add(mOutputLines);
+				mSegmentCodes.add(resultCode);
+				mOutputLines = new ArrayList<String>();
+				
+			} else {
+				mOutputLines.add(outputLine);
+			}
 		}
 		
-		public Result execute(OnShellValidateListener listener) {
-			return setValidateListener(listener).execute();
+		@Override
+		public void onStreamError(ShellStreamer shell, String errorLine) {
+			int pos = errorLine.indexOf(mBatchEnd);
+			
+			if (pos >= 0) {
+				if (pos > 0) {
+					mErrorLines.add(errorLine.substring(0, pos));
+				}
+				
+				mErrorSegments.add(mErrorLines);
+				mErrorLines = new ArrayList<String>();
+			
+			} else {
+				mErrorLines.add(errorLine);
+			}
 		}
 		
-		public Result execute() {
-			return Shell.this.execute(mAttempts, mResultCodes, mValidateListener);
+		@Override
+		public void onStreamStop(ShellStreamer shell, int resultCode) {
+			if(Common.DEBUG)Log.d(TAG, "onStreamStop: The batch finished " + mSegments.size() + " of " + mAttempts.length + " commands");
+			
+			if (resultCode == ShellStreamer.RESULT_DISCONNECTED) {
+				releaseDisconnected(); return;
+			}
+			
+			/*
+			 * The results are not created until now, as the errors for the last commands might not have been read 
+			 * at the time their output was finished
+			 */
+			for (int i=0; i < mSegments.size(); i++) {
+				List<String> errors = i < mErrorSegments.size() ? mErrorSegments.get(i) : new ArrayList<String>();
+				
+				mResults.add(new Result(mSegments.get(i).toArray(new String[mSegments.get(i).size()]), mSegmentCodes.get(i), mValidResults.toArray(new Integer[mValidResults.size()]), 0, errors.toArray(new String[errors.size()])));
+			}
+			
+			mResultCode = resultCode;
+			
+			releaseResult();
 		}
 		
-		public void executeAsync(OnShellResultListener listener) {
-			setResultListener(listener).executeAsync();
+		@Override
+		public Result getResult() {
+			if (mHasResult) {
+				return mResults.size() > 0 ? mResults.get( mResults.size()-1 ) : new Result(new String[0], 1, mValidResults.toArray(new Integer[mValidResults.size()]), 0);
+			}
+			
+			return null;
 		}
 		
-		public void executeAsync() {
-			Shell.this.executeAsync(mAttempts, mResultCodes, mValidateListener, mResultListener);
+		/**
+		 * Get the results for all of the commands in the batch, in the same order as the commands. 
+		 * If the batch was interrupted, the list will only contain the commands that finished. 
+		 */
+		public List<Result> getResults() {
+			if (mHasResult) {
+				return new ArrayList<Result>(mResults);
+			}
+			
+			return null;
 		}
 	}
 	
 	/**
-	 * Establish a {@link ShellStreamer} connection.
+	 * A {@link StreamCollector} that compiles all of the attempts into one shell-side fallback script. <br /><br />
 	 * 
-	 * @param requestRoot
-	 *     Whether or not to request root privileges for the shell connection
+	 * Each attempt is only executed if the previous one returned a result code that is not in the list of 
+	 * valid result codes. This means that a command that only works with the last binary in {@link Common#BINARIES} 
+	 * is resolved in one round trip instead of one per attempt. <br /><br />
+	 * 
+	 * A {@link OnShellValidateListener} is still honoured, but it can only be invoked once the script has finished. 
+	 * Since an attempt with a valid result code is always accepted, the shell can stop at the first one by itself. But if the validater 
+	 * accepts an attempt that failed by it's result code, the attempts following it will already have been executed. 
+	 * 
+	 * @see Shell#setScriptedAttempts(Boolean)
 	 */
-	public Shell(final Boolean requestRoot) {
-		mResultCodes.add(0);
-		mAllowDisconnect = false;
-		mIsRoot = requestRoot;
-		mStream = new ShellStreamer();
-		mStream.addConnectionListener(new ConnectionListener(){
-			@Override
-			public void onShellConnected(ShellStreamer shell) {
-				if(Common.DEBUG)Log.d(TAG, "Listener: ShellStreamer connection has been established");
-				
-				mInstances.add(Shell.this);
+	public static class ScriptedCollector extends StreamCollector {
+		protected static String mAttemptEnd = "EOA:a00c38d8:EOA";
+		
+		protected volatile List<List<String>> mSegments = new ArrayList<List<String>>();
+		protected volatile List<Integer> mSegmentCodes = new ArrayList<Integer>();
+		protected volatile List<List<String>> mErrorSegments = new ArrayList<List<String>>();
+		protected volatile int mResultNumber = 0;
+		
+		public ScriptedCollector(String[] attempts, Set<Integer> resultCodes, OnShellValidateListener validater) {
+			super(attempts, resultCodes, validater);
+		}
+		
+		@Override
+		public void onStreamStart(ShellStreamer shell) {
+			StringBuilder script = new StringBuilder();
+			StringBuilder codes = new StringBuilder();
+			boolean errors = shell.isSeparatingErrors();
+			
+			mSegments.clear();
+			mSegmentCodes.clear();
+			mErrorSegments.clear();
+			mOutputLines = new ArrayList<String>();
+			mErrorLines = new ArrayList<String>();
+			
+			for (Integer code : mValidResults) {
+				codes.append(codes.length() > 0 ? "|" : "").append(code);
 			}
-
-			@Override
-			public void onShellDisconnected(ShellStreamer shell) {
-				if(Common.DEBUG)Log.d(TAG, "Listener: ShellStreamer connection has been disconnected");
-				
-				mInstances.remove(Shell.this);
+			
+			if(Common.DEBUG)Log.d(TAG, "onStreamStart: Executing " + mAttempts.length + " attempts as a fallback script");
+			
+			for (int i=0; i < mAttempts.length; i++) {
+				script.append(mAttempts[i]).append("\n");
+				script.append("RFW_R=$?; ");
 				
-				if (mIsConnected && !mAllowDisconnect) {
-					mStream = shell;
-
-					if (mStream.connect(requestRoot)) {
-						return;
-					}
+				if (errors) {
+					script.append("echo \"").append(mAttemptEnd).append(":").append(i).append("\" >&2; ");
 				}
 				
-				shell.removeConnectionListener(this);
-				
-				mIsConnected = false;
+				script.append("echo \"").append(mAttemptEnd).append(":").append(i).append(" $RFW_R\"");
 				
-				for (OnShellConnectionListener reciever : mConnectionRecievers) {
-					reciever.onShellDisconnect();
+				if (i < mAttempts.length-1) {
+					script.append("; case $RFW_R in ").append(codes).append(") ;; *)\n");
 				}
 			}
-		});
+			
+			for (int i=0; i < mAttempts.length-1; i++) {
+				script.append(" ;; esac");
+			}
+			
+			if (!mCancelled && script.length() > 0) {
+				shell.writeLine(script.toString());
+			}
+			
+			shell.stopStream();
+		}
 		
-		/*
-		 * Kutch superuser daemon mode sometimes has problems connecting the first time.
-		 * So we will give it two tries before giving up.
-		 */
-		for (int i=0; i < 2; i++) {
-			if(Common.DEBUG)Log.d(TAG, "Construct: Running connection attempt number " + (i+1));
+		@Override
+		public void onStreamInput(ShellStreamer shell, String outputLine) {
+			int pos = outputLine.indexOf(mAttemptEnd);
 			
-			if (mStream.connect(requestRoot)) {
-				mIsConnected = true; break;
+			if (pos >= 0) {
+				int resultCode = 1;
+				
+				if (pos > 0) {
+					mOutputLines.add(outputLine.substring(0, pos));
+				}
+				
+				try {
+					resultCode = Integer.parseInt(outputLine.substring(outputLine.indexOf(" ", pos)+1).trim());
+					
+				} catch (Throwable e) {}
+				
+				mSegments.add(mOutputLines);
+				mSegmentCodes.add(resultCode);
+				mOutputLines = new ArrayList<String>();
+				
+			} else {
+				mOutputLines.add(outputLine);
 			}
 		}
-	}
-	
+		
+		@Override
+		public void onStreamError(ShellStreamer shell, String errorLine) {
+			int pos = errorLine.indexOf(mAttemptEnd);
+			
+			if (pos >= 0) {
+				if (pos > 0) {
+					mErrorLines.add(errorLine.substring(0, pos));
+				}
+				
+				mErrorSegments.add(mErrorLines);
+				mErrorLines = new ArrayList<String>();
+			
+			} else {
+				mErrorLines.add(errorLine);
+			}
+		}
+		
+		@Override
+		public void onStreamStop(ShellStreamer shell, int resultCode) {
+			int size = mSegments.size();
+			
+			if (resultCode == ShellStreamer.RESULT_DISCONNECTED) {
+				releaseDisconnected(); return;
+			}
+			
+			for (int i=0; i < size; i++) {
+				int code = mSegmentCodes.get(i);
+				
+				if ((mListener != null && mListener.onShellValidate(mAttempts[i], code, mSegments.get(i), mValidResults)) || mValidResults.contains(code)) {
+					if(Common.DEBUG)Log.d(TAG, "onStreamStop: Attempt " + (i + 1) + " finished with the valid result code '" + code + "'");
+					
+					mValidResults.add(code);
+					mResultCode = code;
+					mResultNumber = i;
+					mOutputLines = mSegments.get(i);
+					mErrorLines = i < mErrorSegments.size() ? mErrorSegments.get(i) : new ArrayList<String>();
+					
+					releaseResult(); return;
+				}
+			}
+			
+			/*
+			 * Like the regular collector, a failed execution contains the result code 
+			 * of the last attempt, but not it's output. 
+			 */
+			mResultCode = size > 0 ? mSegmentCodes.get(size-1) : resultCode;
+			mResultNumber = mAttempts.length;
+			mOutputLines = new ArrayList<String>();
+			mErrorLines = size > 0 && size <= mErrorSegments.size() ? mErrorSegments.get(size-1) : new ArrayList<String>();
+			
+			releaseResult();
+		}
+		
+		@Override
+		public Result getResult() {
+			if (mHasResult) {
+				return new Result(mOutputLines.toArray(new String[mOutputLines.size()]), mResultCode, mValidResults.toArray(new Integer[mValidResults.size()]), mResultNumber, mErrorLines.toArray(new String[mErrorLines.size()]));
+			}
+			
+			return null;
+		}
+	}
+	
+	/**
+	 * A {@link StreamCollector} that parses each output line to a {@link OnShellLineListener} instead of keeping it. 
+	 * This keeps memory usage flat no matter how much output a command produces. The {@link Result} from this collector 
+	 * only contains the result code. <br /><br />
+	 * 
+	 * Since a command can run for a long time while still producing output, the timeout parsed to {@link #waitForResult(long)} 
+	 * is the max time allowed without any new output, rather than the max time for the whole command.
+	 * 
+	 * @see Shell#executeStreaming(String, OnShellLineListener)
+	 */
+	public static class StreamingCollector extends StreamCollector {
+		protected final OnShellLineListener mLineListener;
+		
+		protected volatile boolean mStopped = false;
+		protected volatile long mActivity = 0;
+		
+		public StreamingCollector(String command, Set<Integer> resultCodes, OnShellLineListener listener) {
+			super(new String[]{command}, resultCodes, null);
+			
+			mLineListener = listener;
+		}
+		
+		@Override
+		protected String getSharedKey() {
+			return null;
+		}
+		
+		@Override
+		public void onStreamInput(ShellStreamer shell, String outputLine) {
+			mActivity += 1;
+			
+			if (!mStopped && !mCancelled && !mLineListener.onShellLine(outputLine)) {
+				if(Common.DEBUG)Log.d(TAG, "onStreamInput: The line listener asked to stop the command");
+				
+				mStopped = true;
+				
+				/*
+				 * Kill the command so that the shell can move on to the next stream
+				 */
+				shell.cancelStream(this);
+			}
+		}
+		
+		@Override
+		public void onStreamStop(ShellStreamer shell, int resultCode) {
+			if(Common.DEBUG)Log.d(TAG, "onStreamStop: The command finished with the result code '" + resultCode + "'");
+			
+			if (resultCode == ShellStreamer.RESULT_DISCONNECTED) {
+				releaseDisconnected(); return;
+			}
+			
+			mResultCode = resultCode;
+			
+			/*
+			 * Output has already been delivered, so there is nothing to gain from running other attempts
+			 */
+			releaseResult();
+		}
+		
+		@Override
+		public boolean waitForResult(long timeout) {
+			while (true) {
+				long activity = mActivity;
+				
+				if (super.waitForResult(timeout)) {
+					return true;
+					
+				} else if (activity == mActivity) {
+					return false;
+				}
+			}
+		}
+		
+		/**
+		 * Check whether or not the {@link OnShellLineListener} stopped the command
+		 */
+		public boolean wasStopped() {
+			return mStopped;
+		}
+	}
+	
+	/**
+	 * A {@link StreamingCollector} that writes the raw output bytes of a command to an {@link OutputStream}. 
+	 * The output is not decoded or split into lines, so it is safe to use with binary data. 
+	 * If writing to the {@link OutputStream} fails, the command is stopped. 
+	 * 
+	 * @see Shell#executeBinary(String, OutputStream)
+	 */
+	public static class ByteCollector extends StreamingCollector implements ByteStreamListener {
+		protected final OutputStream mOutput;
+		
+		public ByteCollector(String command, Set<Integer> resultCodes, OutputStream output) {
+			super(command, resultCodes, null);
+			
+			mOutput = output;
+		}
+		
+		@Override
+		public void onStreamBytes(ShellStreamer shell, byte[] buffer, int offset, int length) {
+			mActivity += 1;
+			
+			if (!mStopped && !mCancelled) {
+				try {
+					mOutput.write(buffer, offset, length);
+				
+				} catch (IOException e) {
+					if(Common.DEBUG)Log.d(TAG, "onStreamBytes: Could not write to the output stream, stopping the command");
+					
+					mStopped = true;
+					shell.cancelStream(this);
+				}
+			}
+		}
+		
+		@Override
+		public void onStreamStop(ShellStreamer shell, int resultCode) {
+			if (!mCancelled) {
+				try {
+					mOutput.flush();
+				
+				} catch (IOException e) {}
+			}
+			
+			super.onStreamStop(shell, resultCode);
+		}
+	}
+	
+	/**
+	 * The handle returned by the asynchronous execute methods. It is a regular {@link FutureTask}, so the result can be 
+	 * waited on using {@link #get()}, and it adds a few extras on top of that. <br /><br />
+	 * 
+	 * Cancelling it will also cancel the execution in the shell. An execution that is still queued is removed, and 
+	 * a running one is interrupted if <code>mayInterruptIfRunning</code> is TRUE. <br /><br />
+	 * 
+	 * Listeners added with {@link #then(OnShellResultListener)} are invoked in order once the execution has finished. 
+	 * A cancelled execution invokes them with NULL.
+	 */
+	public static class ResultFuture extends FutureTask<Result> {
+		protected static final AtomicLong mNextSequence = new AtomicLong();
+		
+		protected final Shell mShell;
+		protected final StreamCollector mCollector;
+		protected final List<OnShellResultListener> mListeners = new ArrayList<OnShellResultListener>();
+		protected final long mDeadline;
+		protected final long mSequence;
+		protected Boolean mFinished = false;
+		
+		public ResultFuture(Shell shell, StreamCollector collector, Callable<Result> task) {
+			super(task);
+			
+			mShell = shell;
+			mCollector = collector;
+			mDeadline = System.currentTimeMillis() + ((long) collector.getPriority() * ShellStreamer.PRIORITY_AGING);
+			mSequence = mNextSequence.incrementAndGet();
+		}
+		
+		/**
+		 * Add a listener that will receive the result once the execution has finished. 
+		 * If it has already finished, the listener is invoked right away on the current thread.
+		 */
+		public ResultFuture then(OnShellResultListener listener) {
+			if (listener != null) {
+				synchronized (mListeners) {
+					if (!mFinished) {
+						mListeners.add(listener); return this;
+					}
+				}
+				
+				listener.onShellResult(getResult());
+			}
+			
+			return this;
+		}
+		
+		/**
+		 * Get the result without waiting or throwing. 
+		 * 
+		 * @return
+		 *     The result, or NULL if the execution has not finished, was cancelled or failed
+		 */
+		public Result getResult() {
+			if (isDone() && !isCancelled()) {
+				try {
+					return get();
+					
+				} catch (InterruptedException e) {
+				} catch (ExecutionException e) {
+					Log.w(TAG, e.getMessage(), e);
+				}
+			}
+			
+			return null;
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (super.cancel(mayInterruptIfRunning)) {
+				mCollector.cancel();
+				
+				if (mShell.cancelExecution(mCollector, mayInterruptIfRunning)) {
+					if(Common.DEBUG)Log.d(TAG, "cancel: The execution was cancelled in the shell");
+				}
+				
+				return true;
+			}
+			
+			return false;
+		}
+		
+		@Override
+		protected void done() {
+			List<OnShellResultListener> listeners = null;
+			Result result = getResult();
+			
+			synchronized (mListeners) {
+				mFinished = true;
+				listeners = new ArrayList<OnShellResultListener>(mListeners);
+				mListeners.clear();
+			}
+			
+			for (OnShellResultListener listener : listeners) {
+				listener.onShellResult(result);
+			}
+		}
+		
+		/**
+		 * Invoke a listener once, when all of the parsed executions has finished.
+		 * 
+		 * @param futures
+		 *     The executions to wait for
+		 *     
+		 * @param listener
+		 *     A {@link Shell.OnShellResultsListener} callback instance
+		 */
+		public static void whenAll(List<ResultFuture> futures, final OnShellResultsListener listener) {
+			final Result[] results = new Result[ futures.size() ];
+			final AtomicInteger remaining = new AtomicInteger( futures.size() );
+			
+			if (futures.size() == 0) {
+				listener.onShellResults(new ArrayList<Result>()); return;
+			}
+			
+			for (int i=0; i < futures.size(); i++) {
+				final int index = i;
+				
+				futures.get(i).then(new OnShellResultListener() {
+					@Override
+					public void onShellResult(Result result) {
+						results[index] = result;
+						
+						if (remaining.decrementAndGet() == 0) {
+							listener.onShellResults(Arrays.asList(results));
+						}
+					}
+				});
+			}
+		}
+	}
+	
+	/**
+	 * Internal class used to let identical executions wait for the one that is already running
+	 * 
+	 * @see Shell#executeShared(StreamCollector)
+	 */
+	protected static class SharedExecution {
+		public final StreamCollector collector;
+		public final CountDownLatch latch = new CountDownLatch(1);
+		public volatile boolean finished = false;
+		public volatile boolean cancelled = false;
+		
+		public SharedExecution(StreamCollector collector) {
+			this.collector = collector;
+		}
+	}
+	
+	/**
+	 * A class containing automatically created shell attempts and links to both {@link Shell#executeAsync(String[], Integer[], OnShellResultListener)} and {@link Shell#execute(String[], Integer[])} <br /><br />
+	 * 
+	 * All attempts are created based on {@link Common#BINARIES}. <br /><br />
+	 * 
+	 * Example: String("ls") would become String["ls", "busybox ls", "toolbox ls"] if {@link Common#BINARIES} equals String[null, "busybox", "toolbox"].<br /><br />
+	 * 
+	 * You can also apply the keyword %binary if you need to apply the binaries to more than the beginning of a command. <br /><br />
+	 * 
+	 * Example: String("(%binary test -d '%binary pwd') || exit 1") would become String["(test -d 'pwd') || exit 1", "(busybox test -d 'busybox pwd') || exit 1", "(toolbox test -d 'toolbox pwd') || exit 1"]
+	 * 
+	 * @see Shell#createAttempts(String)
+	 */
+	public class Attempts {
+		protected String[] mAttempts;
+		protected Integer[] mResultCodes;
+		protected OnShellValidateListener mValidateListener;
+		protected OnShellResultListener mResultListener;
+		protected Boolean mScripted;
+		protected Integer mPriority = ShellStreamer.PRIORITY_NORMAL;
+		protected Boolean mReadOnly = false;
+		protected Integer mCacheTime = 0;
+		protected String mVerb;
+		protected String[] mBinaries;
+		
+		protected Attempts(String command) {
+			if (command != null) {
+				Integer pos = 0;
+				String preferred = null;
+				
+				requestProbe();
+				
+				mVerb = getCommandVerb(command);
+				mAttempts = new String[ Common.BINARIES.length ];
+				mBinaries = new String[ Common.BINARIES.length ];
+				
+				if (mVerb != null) {
+					preferred = mBinaryPreference.get(mVerb);
+				}
+				
+				/*
+				 * If we already know which binary works for this command, it is moved to the front
+				 */
+				if (preferred != null) {
+					for (String binary : Common.BINARIES) {
+						if (preferred.equals(binary != null ? binary : "")) {
+							mBinaries[pos++] = binary; break;
+						}
+					}
+				}
+				
+				for (String binary : Common.BINARIES) {
+					if (pos == 0 || preferred == null || !preferred.equals(binary != null ? binary : "")) {
+						/*
+						 * Skip binaries that are known not to support this command. 
+						 * The plain command is always kept, as it might be a shell builtin.
+						 */
+						if (binary == null || mVerb == null || !Boolean.FALSE.equals(Capabilities.hasCommand(binary, mVerb))) {
+							mBinaries[pos++] = binary;
+						}
+					}
+				}
+				
+				if (pos < mBinaries.length) {
+					mBinaries = Arrays.copyOf(mBinaries, pos);
+					mAttempts = new String[ pos ];
+				}
+				
+				for (pos=0; pos < mBinaries.length; pos++) {
+					String binary = mBinaries[pos];
+					
+					if (command.contains("%binary ")) {
+						mAttempts[pos] = command.replaceAll("%binary ", (binary != null && binary.length() > 0 ? binary + " " : ""));
+						
+					} else {
+						mAttempts[pos] = (binary != null && binary.length() > 0 ? binary + " " : "") + command;
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Store the binary that produced a successful result, and convert the command number 
+		 * back into the order of {@link Common#BINARIES}, which is what callers expect. 
+		 */
+		protected Result learn(Result result) {
+			if (result != null && result.mCommandNumber >= mBinaries.length) {
+				/*
+				 * Every attempt failed, which is reported using the full length even if some binaries was skipped
+				 */
+				result.mCommandNumber = Common.BINARIES.length;
+				
+			} else if (result != null && result.mCommandNumber >= 0) {
+				String binary = mBinaries[ result.mCommandNumber ];
+				
+				if (mVerb != null && result.wasSuccessful()) {
+					mBinaryPreference.put(mVerb, binary != null ? binary : "");
+				}
+				
+				for (int i=0; i < Common.BINARIES.length; i++) {
+					if (Common.BINARIES[i] == binary || (binary != null && binary.equals(Common.BINARIES[i]))) {
+						result.mCommandNumber = i; break;
+					}
+				}
+			}
+			
+			return result;
+		}
+		
+		public Attempts setValidateListener(OnShellValidateListener listener) {
+			mValidateListener = listener; return this;
+		}
+		
+		public Attempts setResultListener(OnShellResultListener listener) {
+			mResultListener = listener; return this;
+		}
+		
+		public Attempts setResultCodes(Integer... resultCodes) {
+			mResultCodes = resultCodes; return this;
+		}
+		
+		/**
+		 * Override {@link Shell#setScriptedAttempts(Boolean)} for this instance. 
+		 * Parse NULL to use the setting from the {@link Shell}.
+		 */
+		public Attempts setScripted(Boolean scripted) {
+			mScripted = scripted; return this;
+		}
+		
+		/**
+		 * Change the queue priority for this instance
+		 * 
+		 * @see ShellStreamer#startStream(StreamListener, int)
+		 */
+		public Attempts setPriority(Integer priority) {
+			mPriority = priority; return this;
+		}
+		
+		/**
+		 * Mark these attempts as read-only, meaning that they do not change anything on the device. 
+		 * Read-only attempts share a single execution with identical ones that are already running.
+		 * 
+		 * @see Shell#executeShared(StreamCollector)
+		 */
+		public Attempts setReadOnly(Boolean readOnly) {
+			mReadOnly = readOnly; return this;
+		}
+		
+		/**
+		 * Keep the result of these attempts in the {@link ResultCache} of the {@link Shell}, and reuse it while it is valid. 
+		 * This also makes the attempts read-only, as only commands that do not change anything should be cached.
+		 * 
+		 * @see Shell#executeCached(StreamCollector, Integer)
+		 * 
+		 * @param ttl
+		 *     The time in milliseconds that the result is valid, or '0' to disable caching
+		 */
+		public Attempts setCacheable(Integer ttl) {
+			mCacheTime = ttl; return this;
+		}
+		
+		/**
+		 * Internal method used to execute the collector for this instance
+		 */
+		protected Result execute(StreamCollector collector) {
+			if (mCacheTime > 0) {
+				return Shell.this.executeCached(collector, mCacheTime);
+			}
+			
+			return mReadOnly ? Shell.this.executeShared(collector) : Shell.this.execute(collector);
+		}
+		
+		/**
+		 * Internal method used to create the collector for this instance
+		 */
+		protected StreamCollector createCollector() {
+			StreamCollector collector = isScripted() ? 
+					new ScriptedCollector(mAttempts, getResultCodes(mResultCodes), mValidateListener) : 
+						new StreamCollector(mAttempts, getResultCodes(mResultCodes), mValidateListener);
+			
+			return collector.setPriority(mPriority).setIdempotent(mReadOnly || mCacheTime > 0);
+		}
+		
+		public Result execute(OnShellValidateListener listener) {
+			return setValidateListener(listener).execute();
+		}
+		
+		public Result execute() {
+			return learn( execute(createCollector()) );
+		}
+		
+		public ResultFuture executeAsync(OnShellResultListener listener) {
+			return setResultListener(listener).executeAsync();
+		}
+		
+		public ResultFuture executeAsync() {
+			final StreamCollector collector = createCollector();
+			
+			return submit(collector, new Callable<Result>() {
+				@Override
+				public Result call() {
+					return learn( Attempts.this.execute(collector) );
+				}
+				
+			}, mResultListener);
+		}
+		
+		protected Boolean isScripted() {
+			return mScripted != null ? mScripted : mScriptedAttempts;
+		}
+	}
+	
+	/**
+	 * For use by subclasses that manage their own connections, like {@link ShellPool}
+	 */
+	protected Shell() {
+		mResultCodes.add(0);
+		mMetrics = new ShellMetrics();
+	}
+	
+	/**
+	 * Establish a {@link ShellStreamer} connection.
+	 * 
+	 * @param requestRoot
+	 *     Whether or not to request root privileges for the shell connection
+	 */
+	public Shell(final Boolean requestRoot) {
+		this(requestRoot, createStreamer());
+	}
+	
+	/**
+	 * Create the {@link ShellStreamer} used by {@link #Shell(Boolean)}. 
+	 * Errors are merged into the regular output. Parse a {@link ShellStreamer} with {@link ShellStreamer#setSeparateErrors(boolean)} enabled 
+	 * to {@link #Shell(Boolean, ShellStreamer)} in order to have them in {@link Result#getErrors()} instead.
+	 */
+	protected static ShellStreamer createStreamer() {
+		return new ShellStreamer();
+	}
+	
+	/**
+	 * Establish a connection using a pre-configured {@link ShellStreamer}. 
+	 * This can be used to enable features like {@link ShellStreamer#setPipelined(boolean)} before the connection is made.<br /><br />
+	 * 
+	 * <code>ShellStreamer stream = new ShellStreamer();<br />stream.setPipelined(true);<br />Shell shell = new Shell(true, stream);</code>
+	 * 
+	 * @param requestRoot
+	 *     Whether or not to request root privileges for the shell connection
+	 *     
+	 * @param stream
+	 *     A new {@link ShellStreamer} that has not yet been connected
+	 */
+	public Shell(final Boolean requestRoot, ShellStreamer stream) {
+		mResultCodes.add(0);
+		mAllowDisconnect = false;
+		mIsRoot = requestRoot;
+		mStream = stream;
+		mMetrics = stream.getMetrics();
+		mTracer = stream.getTracer();
+		mStream.addConnectionListener(new ConnectionListener(){
+			@Override
+			public void onShellConnected(ShellStreamer shell) {
+				if(Common.DEBUG)Log.d(TAG, "Listener: ShellStreamer connection has been established");
+				
+				mInstances.add(Shell.this);
+			}
+
+			@Override
+			public void onShellDisconnected(ShellStreamer shell) {
+				if(Common.DEBUG)Log.d(TAG, "Listener: ShellStreamer connection has been disconnected");
+				
+				mInstances.remove(Shell.this);
+				
+				/*
+				 * Executions that was sent to the lost connection will never finish. 
+				 * They are released right away, so that their callers can replay them or give up without waiting for the timeout.
+				 */
+				synchronized (mStarted) {
+					for (StreamCollector collector : mStarted) {
+						collector.releaseDisconnected();
+					}
+				}
+				
+				if (mIsConnected && !mAllowDisconnect) {
+					mStream = shell;
+
+					ShellTracer tracer = mTracer;
+					long started = System.nanoTime();
+					Boolean reconnected = reconnect(requestRoot);
+					
+					if (tracer != null) {
+						tracer.span("connection", "reconnect", started, "connected", String.valueOf(reconnected));
+					}
+					
+					if (reconnected) {
+						if (mMetrics != null) {
+							mMetrics.recordReconnect();
+						}
+						
+						synchronized (mReconnectLock) {
+							mConnectionGeneration += 1;
+							mReconnectLock.notifyAll();
+						}
+						
+						return;
+					}
+				}
+				
+				shell.removeConnectionListener(this);
+				
+				mIsConnected = false;
+				
+				synchronized (mReconnectLock) {
+					mReconnectLock.notifyAll();
+				}
+				
+				for (OnShellConnectionListener reciever : mConnectionRecievers) {
+					reciever.onShellDisconnect();
+				}
+			}
+		});
+		
+		/*
+		 * Kutch superuser daemon mode sometimes has problems connecting the first time.
+		 * So we will give it two tries before giving up.
+		 */
+		for (int i=0; i < 2; i++) {
+			if(Common.DEBUG)Log.d(TAG, "Construct: Running connection attempt number " + (i+1));
+			
+			if (mStream.connect(requestRoot)) {
+				mIsConnected = true; break;
+			}
+		}
+	}
+		
+	/**
+	 * Fill the {@link Capabilities} registry in the background, unless it has already been probed by a shell with the same privileges. <br /><br />
+	 * 
+	 * This is called the first time this shell needs the registry, so that connecting does not have to wait for the probe. 
+	 * Until the probe is done, commands are located one at a time by {@link #findCommand(String)}.
+	 */
+	protected void requestProbe() {
+		if (!mProbeRequested && mIsConnected && !Capabilities.isProbed(mIsRoot)) {
+			mProbeRequested = true;
+			
+			getAsyncExecutor().execute(new Runnable(){
+				@Override
+				public void run() {
+					Capabilities.probe(Shell.this);
+				}
+			});
+		}
+	}
+	
 	/**
 	 * Execute a shell command.
 	 * 
@@ -424,6 +1445,25 @@ public class Shell {
 		return execute(new String[]{command}, null, null);
 	}
 	
+	/**
+	 * Execute a shell command with a specific queue priority.
+	 * 
+	 * @see ShellStreamer#startStream(StreamListener, int)
+	 * 
+	 * @param command
+	 *     The command to execute
+	 *     
+	 * @param priority
+	 *     One of {@link ShellStreamer#PRIORITY_INTERACTIVE}, {@link ShellStreamer#PRIORITY_NORMAL} or {@link ShellStreamer#PRIORITY_BULK}
+	 */
+	public Result execute(String command, Integer priority) {
+		if (mIsConnected) {
+			return execute( new StreamCollector(new String[]{command}, getResultCodes(null), null).setPriority(priority) );
+		}
+		
+		return null;
+	}
+	
 	/**
 	 * Execute a range of commands until one is successful.
 	 * 
@@ -437,64 +1477,470 @@ public class Shell {
 	}
 	
 	/**
-	 * Execute a range of commands until one is successful.<br /><br />
-	 * 
-	 * Android shells differs a lot from one another, which makes it difficult to program shell scripts for it. 
-	 * This method can help with that by trying different commands until one works. <br /><br />
-	 * 
-	 * <code>Shell.execute( new String(){"cat file", "toolbox cat file", "busybox cat file"} );</code><br /><br />
+	 * Execute a range of commands until one is successful.<br /><br />
+	 * 
+	 * Android shells differs a lot from one another, which makes it difficult to program shell scripts for it. 
+	 * This method can help with that by trying different commands until one works. <br /><br />
+	 * 
+	 * <code>Shell.execute( new String(){"cat file", "toolbox cat file", "busybox cat file"} );</code><br /><br />
+	 * 
+	 * Whether or not a command was successful, depends on {@link Shell#addResultCode(Integer)} which by default only contains '0'. 
+	 * The command number that was successful can be checked using {@link Result#getCommandNumber()}.
+	 * 
+	 * @param commands
+	 *     The commands to try
+	 *     
+	 * @param resultCodes
+	 *     Result Codes representing successful execution. These will be temp. merged with {@link Shell#addResultCode(Integer)}. 
+	 *     
+	 * @param validater
+	 *     A {@link OnShellValidateListener} instance or NULL
+	 */	
+	public Result execute(String[] commands, Integer[] resultCodes, OnShellValidateListener validater) {
+		if (mIsConnected) {
+			return execute( new StreamCollector(commands, getResultCodes(resultCodes), validater) );
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Internal method used to merge additional result codes with {@link Shell#addResultCode(Integer)}
+	 */
+	protected Set<Integer> getResultCodes(Integer[] resultCodes) {
+		Set<Integer> codes = new HashSet<Integer>(mResultCodes);
+		
+		if (resultCodes != null) {
+			Collections.addAll(codes, resultCodes);
+		}
+		
+		return codes;
+	}
+	
+	/**
+	 * Execute a list of commands using a single write to the shell. <br /><br />
+	 * 
+	 * Unlike {@link #execute(String[])} which tries each command until one is successful, this will execute 
+	 * all of the commands in order and return the output and result code of each one. All of them are sent 
+	 * as one stream, which saves the round trip that each separate execution would otherwise require.
+	 * 
+	 * @param commands
+	 *     The commands to execute
+	 *     
+	 * @return
+	 *     A list with one {@link Result} per command, or NULL if the batch could not be executed
+	 */
+	public List<Result> executeBatch(List<String> commands) {
+		if (mIsConnected && commands != null && commands.size() > 0) {
+			BatchCollector collector = new BatchCollector(commands.toArray(new String[commands.size()]), new HashSet<Integer>(mResultCodes));
+			
+			if (execute(collector) != null) {
+				return collector.getResults();
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Execute a command and parse each output line to a listener as it is read, without keeping any of it in memory. <br /><br />
+	 * 
+	 * This is meant for commands with a lot of output, like <code>find /</code> or <code>cat</code> on a large log file, 
+	 * where {@link #execute(String)} would keep all of it in a {@link Result}. The listener is invoked on the thread that reads the shell, 
+	 * so it should not block for longer than needed.
+	 * 
+	 * @param command
+	 *     The command to execute
+	 *     
+	 * @param listener
+	 *     A {@link Shell.OnShellLineListener} callback instance
+	 *     
+	 * @return
+	 *     The result code of the command, or NULL if it could not be executed or stopped producing output for longer than {@link #getTimeout()}
+	 */
+	public Integer executeStreaming(String command, OnShellLineListener listener) {
+		if (mIsConnected && command != null && listener != null) {
+			Result result = execute( new StreamingCollector(command, new HashSet<Integer>(mResultCodes), listener) );
+			
+			if (result != null) {
+				return result.getResultCode();
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Execute a command and write it's raw output to an {@link OutputStream}. <br /><br />
+	 * 
+	 * Unlike the other execute methods, the output is not decoded as text, so this can be used to copy binary data 
+	 * like images or database files, for example using <code>cat</code>. Note that <code>stderr</code> is part of the same stream 
+	 * unless {@link #isSeparatingErrors()}, so it should otherwise be redirected, for example using <code>2>/dev/null</code>, if it should not end up in the output. 
+	 * The {@link OutputStream} is not closed by this method.
+	 * 
+	 * @param command
+	 *     The command to execute
+	 *     
+	 * @param output
+	 *     The {@link OutputStream} that receives the output
+	 *     
+	 * @return
+	 *     The result code of the command, or NULL if it could not be executed or stopped producing output for longer than {@link #getTimeout()}
+	 */
+	public Integer executeBinary(String command, OutputStream output) {
+		if (mIsConnected && command != null && output != null) {
+			Result result = execute( new ByteCollector(command, new HashSet<Integer>(mResultCodes), output) );
+			
+			if (result != null) {
+				return result.getResultCode();
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Start a stream on this instance's {@link ShellStreamer} using the default or a custom version of 
+	 * {@link StreamCollector}.
+	 * 
+	 * @return
+	 * 		{@link Result} collected by the parsed {@link StreamCollector}
+	 */
+	public Result execute(StreamCollector collector) {
+		long begin = System.nanoTime();
+		Integer replays = 0;
+		
+		while (mIsConnected) {
+			Integer generation = mConnectionGeneration;
+			Boolean started = false;
+			
+			synchronized (mStarted) {
+				if (mStream.startStream(collector, collector.getPriority())) {
+					mStarted.add(collector);
+					started = true;
+				}
+			}
+			
+			if (!started) {
+				/*
+				 * The connection might be in the middle of a reconnect. 
+				 * Nothing has been sent yet, so it is safe to wait for it no matter what the command does.
+				 */
+				if (!collector.isCancelled() && replays++ < mReplayLimit && waitForReconnect(generation)) {
+					continue;
+				}
+				
+				break;
+			}
+			
+			try {
+				if (collector.waitForResult(mShellTimeout)) {
+					if (!collector.isDisconnected()) {
+						Result result = collector.getResult();
+						
+						if (mMetrics != null) {
+							mMetrics.recordAttempts(Math.max(1, Math.min(collector.mAttemptNumber + 1, collector.mAttempts.length)));
+						}
+						
+						traceExecution(collector, begin, result);
+						
+						return result;
+					
+					} else if (canReplay(collector, replays++) && waitForReconnect(generation)) {
+						if(Common.DEBUG)Log.d(TAG, "execute: The connection was lost, replaying the execution");
+						
+						collector.reset(); continue;
+					}
+					
+				} else {
+					collector.cancel();
+					
+					if (mMetrics != null) {
+						mMetrics.recordTimeout();
+					}
+					
+					/*
+					 * Try to cancel only this execution, so that the connection and the rest of the queue is kept
+					 */
+					if (mStream.removeStream(collector)) {
+						if(Common.DEBUG)Log.d(TAG, "execute: The shell timedout before the execution was started, removing it from the queue");
+						
+					} else if (mStream.cancelStream(collector) && collector.waitForResult(mCancelTimeout)) {
+						if(Common.DEBUG)Log.d(TAG, "execute: The shell timedout, the execution was cancelled");
+						
+					} else {
+						if(Common.DEBUG)Log.d(TAG, "execute: The shell timedout, doing a force reconnect");
+						
+						/*
+						 * Something is wrong, reconnect to the shell.
+						 */
+						mStream.disconnect();
+					}
+				}
+			
+			} finally {
+				synchronized (mStarted) {
+					mStarted.remove(collector);
+				}
+			}
+			
+			break;
+		}
+		
+		traceExecution(collector, begin, null);
+		
+		return null;
+	}
+	
+	/**
+	 * Internal method used to record an execution in the tracer, if enabled
+	 */
+	protected void traceExecution(StreamCollector collector, long started, Result result) {
+		ShellTracer tracer = mTracer;
+		
+		if (tracer != null) {
+			tracer.span("shell", collector.mAttempts.length > 0 ? collector.mAttempts[0] : "execute", started, 
+					"attempts", String.valueOf(collector.mAttempts.length), 
+					"tried", String.valueOf(Math.min(collector.mAttemptNumber + 1, collector.mAttempts.length)), 
+					"result", result != null ? String.valueOf(result.getResultCode()) : "null");
+		}
+	}
+	
+	/**
+	 * Check whether an execution that was lost with the connection should be executed again
+	 */
+	protected Boolean canReplay(StreamCollector collector, Integer replays) {
+		return mReplayOnReconnect && collector.isIdempotent() && !collector.isCancelled() && replays < mReplayLimit;
+	}
+	
+	/**
+	 * Wait for the listener to either re-establish the connection or give up
+	 * 
+	 * @param generation
+	 *     The connection generation from before the connection was lost
+	 * 
+	 * @return
+	 *     <code>True</code> if a new connection is available
+	 */
+	protected Boolean waitForReconnect(Integer generation) {
+		synchronized (mReconnectLock) {
+			long timeout = mShellTimeout > 0 ? System.currentTimeMillis() + mShellTimeout : 0;
+			
+			try {
+				while (mIsConnected && mConnectionGeneration.equals(generation)) {
+					if (timeout > 0) {
+						long remaining = timeout - System.currentTimeMillis();
+						
+						if (remaining <= 0) {
+							break;
+						}
+						
+						mReconnectLock.wait(remaining);
+					
+					} else {
+						mReconnectLock.wait();
+					}
+				}
+			
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			
+			return mIsConnected && !mConnectionGeneration.equals(generation);
+		}
+	}
+	
+	/**
+	 * Try to re-establish a lost connection, using the policy from {@link #setReconnectPolicy(Integer, Integer)}
+	 */
+	protected Boolean reconnect(Boolean requestRoot) {
+		Integer delay = mReconnectDelay;
+		
+		for (int i=0; i < mReconnectAttempts && !mAllowDisconnect; i++) {
+			if (i > 0) {
+				if(Common.DEBUG)Log.d(TAG, "reconnect: Waiting " + delay + "ms before the next attempt");
+				
+				try {
+					Thread.sleep(delay);
+				
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt(); break;
+				}
+				
+				delay = Math.min(delay * 2, 30000);
+				
+				if (mAllowDisconnect) {
+					break;
+				}
+			}
+			
+			if (mStream.connect(requestRoot)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Execute a read-only shell command, sharing the execution with identical ones that are already running.
+	 * 
+	 * @see Shell#executeShared(StreamCollector)
+	 * 
+	 * @param command
+	 *     The command to execute
+	 */
+	public Result executeShared(String command) {
+		if (mIsConnected) {
+			return executeShared( new StreamCollector(new String[]{command}, getResultCodes(null), null).setIdempotent(true) );
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Execute a read-only {@link StreamCollector}, sharing the execution with identical ones that are already running. <br /><br />
+	 * 
+	 * If another thread is currently executing the same attempts with the same result codes, this waits for that execution 
+	 * instead of adding another one to the queue, and returns it's own copy of the {@link Result}. This should only be used for commands 
+	 * that does not change anything, like reading from <code>/proc</code>, as callers arriving during an execution will not see changes made after it was started. 
+	 * Collectors that cannot be shared, like those with a validate listener, are executed normally. 
+	 * 
+	 * @param collector
+	 *     The {@link StreamCollector} to execute
+	 * 
+	 * @return
+	 *     {@link Result} collected by the parsed or the shared {@link StreamCollector}
+	 */
+	public Result executeShared(StreamCollector collector) {
+		String key = collector.getSharedKey();
+		SharedExecution shared = null;
+		Boolean owner = false;
+		
+		if (key == null) {
+			return execute(collector);
+		}
+		
+		synchronized (mSharedExecutions) {
+			if ((shared = mSharedExecutions.get(key)) == null) {
+				shared = new SharedExecution(collector);
+				owner = true;
+				
+				mSharedExecutions.put(key, shared);
+			}
+		}
+		
+		if (owner) {
+			Result result = null;
+			
+			try {
+				return (result = execute(collector));
+			
+			} finally {
+				synchronized (mSharedExecutions) {
+					mSharedExecutions.remove(key);
+				}
+				
+				shared.finished = result != null;
+				shared.cancelled = collector.isCancelled();
+				shared.latch.countDown();
+			}
+		}
+		
+		if(Common.DEBUG)Log.d(TAG, "executeShared: Waiting for an identical execution that is already running");
+		
+		try {
+			shared.latch.await();
+		
+		} catch (InterruptedException e) {
+			return null;
+		}
+		
+		if (shared.cancelled) {
+			/*
+			 * The cancel was meant for the other caller, so this one still needs it's result
+			 */
+			return collector.isCancelled() ? null : execute(collector);
+		
+		} else if (shared.finished) {
+			return shared.collector.getResult();
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Execute a read-only shell command, reusing a cached result while it is valid.
 	 * 
-	 * Whether or not a command was successful, depends on {@link Shell#addResultCode(Integer)} which by default only contains '0'. 
-	 * The command number that was successful can be checked using {@link Result#getCommandNumber()}.
+	 * @see Shell#executeCached(StreamCollector, Integer)
 	 * 
-	 * @param commands
-	 *     The commands to try
-	 *     
-	 * @param resultCodes
-	 *     Result Codes representing successful execution. These will be temp. merged with {@link Shell#addResultCode(Integer)}. 
+	 * @param command
+	 *     The command to execute
 	 *     
-	 * @param validater
-	 *     A {@link OnShellValidateListener} instance or NULL
-	 */	
-	public Result execute(String[] commands, Integer[] resultCodes, OnShellValidateListener validater) {
+	 * @param ttl
+	 *     The time in milliseconds that the result is valid
+	 */
+	public Result executeCached(String command, Integer ttl) {
 		if (mIsConnected) {
-			Set<Integer> codes = new HashSet<Integer>(mResultCodes);
-			
-			if (resultCodes != null) {
-				Collections.addAll(codes, resultCodes);
-			}
-
-			return execute( new StreamCollector(commands, codes, validater) );
+			return executeCached( new StreamCollector(new String[]{command}, getResultCodes(null), null).setIdempotent(true), ttl );
 		}
 		
 		return null;
 	}
 	
 	/**
-	 * Start a stream on this instance's {@link ShellStreamer} using the default or a custom version of 
-	 * {@link StreamCollector}.
+	 * Execute a read-only {@link StreamCollector}, reusing a cached result while it is valid. <br /><br />
+	 * 
+	 * Results are stored in this instance's {@link ResultCache}, using the same key as {@link #executeShared(StreamCollector)}. 
+	 * A cache miss is executed as shared, so identical concurrent misses only run once. Failed executions are not cached, 
+	 * and collectors that cannot be shared are executed normally.
+	 * 
+	 * @param collector
+	 *     The {@link StreamCollector} to execute
+	 *     
+	 * @param ttl
+	 *     The time in milliseconds that the result is valid
 	 * 
 	 * @return
-	 * 		{@link Result} collected by the parsed {@link StreamCollector}
+	 *     {@link Result} from the cache or from the execution
 	 */
-	public Result execute(StreamCollector collector) {
-		if (mIsConnected) {
-			if (mStream.startStream(collector)) {
-				if (collector.waitForResult(mShellTimeout)) {
-					return collector.getResult();
-					
-				} else {
-					if(Common.DEBUG)Log.d(TAG, "execute: The shell timedout, doing a force reconnect");
-					
-					/*
-					 * Something is wrong, reconnect to the shell.
-					 */
-					mStream.disconnect();
+	public Result executeCached(StreamCollector collector, Integer ttl) {
+		String key = collector.getSharedKey();
+		
+		if (key != null) {
+			/*
+			 * Read before the lookup, so that an invalidation during the execution 
+			 * stops a possibly outdated result from being stored
+			 */
+			Long epoch = mResultCache.getEpoch();
+			Result result = mResultCache.get(key);
+			
+			if (result == null) {
+				result = executeShared(collector);
+				
+				/*
+				 * When every attempt fails, the command number points past the last attempt
+				 */
+				if (result != null && result.wasSuccessful() && result.getCommandNumber() < collector.mAttempts.length) {
+					mResultCache.put(key, result, ttl, epoch);
 				}
+			
+			} else {
+				if(Common.DEBUG)Log.d(TAG, "executeCached: Using a cached result");
 			}
+			
+			return result;
 		}
 		
-		return null;
+		return execute(collector);
+	}
+	
+	/**
+	 * Get the {@link ResultCache} used by this instance. This can be used to change it's size or to invalidate results 
+	 * after changes that the cache cannot know about.
+	 */
+	public ResultCache getResultCache() {
+		return mResultCache;
 	}
 	
 	/**
@@ -508,8 +1954,27 @@ public class Shell {
 	 * @param listener
 	 *     A {@link Shell.OnShellResultListener} callback instance
 	 */
-	public void executeAsync(String command, OnShellResultListener listener) {
-		executeAsync(new String[]{command}, null, null, listener);
+	public ResultFuture executeAsync(String command, OnShellResultListener listener) {
+		return executeAsync(new String[]{command}, null, null, listener);
+	}
+	
+	/**
+	 * Execute a shell command asynchronous with a specific queue priority. 
+	 * The priority is also used to order the executions waiting for an async thread.
+	 * 
+	 * @see Shell#execute(String, Integer)
+	 * 
+	 * @param command
+	 *     The command to execute
+	 *     
+	 * @param priority
+	 *     One of {@link ShellStreamer#PRIORITY_INTERACTIVE}, {@link ShellStreamer#PRIORITY_NORMAL} or {@link ShellStreamer#PRIORITY_BULK}
+	 * 
+	 * @param listener
+	 *     A {@link Shell.OnShellResultListener} callback instance or NULL
+	 */
+	public ResultFuture executeAsync(String command, Integer priority, OnShellResultListener listener) {
+		return executeAsync(new StreamCollector(new String[]{command}, getResultCodes(null), null).setPriority(priority), listener);
 	}
 	
 	/**
@@ -523,8 +1988,8 @@ public class Shell {
 	 * @param listener
 	 *     A {@link Shell.OnShellResultListener} callback instance
 	 */
-	public void executeAsync(String[] commands, OnShellResultListener listener) {
-		executeAsync(commands, null, null, listener);
+	public ResultFuture executeAsync(String[] commands, OnShellResultListener listener) {
+		return executeAsync(commands, null, null, listener);
 	}
 	
 	/**
@@ -542,20 +2007,13 @@ public class Shell {
 	 *     A {@link OnShellValidateListener} instance or NULL
 	 * 
 	 * @param listener
-	 *     A {@link Shell.OnShellResultListener} callback instance
+	 *     A {@link Shell.OnShellResultListener} callback instance or NULL
+	 *     
+	 * @return
+	 *     A {@link ResultFuture} that can be used to wait for, cancel or chain the execution
 	 */
-	public synchronized void executeAsync(final String[] commands, final Integer[] resultCodes, final OnShellValidateListener validater, final OnShellResultListener listener) {
-		if(Common.DEBUG)Log.d(TAG, "executeAsync: Starting an async shell execution");
-
-		new Thread() {
-			@Override
-			public void run() {
-				Result result = Shell.this.execute(commands, resultCodes, validater);
-				
-				listener.onShellResult(result);
-			}
-			
-		}.start();
+	public ResultFuture executeAsync(String[] commands, Integer[] resultCodes, OnShellValidateListener validater, OnShellResultListener listener) {
+		return executeAsync(new StreamCollector(commands, getResultCodes(resultCodes), validater), listener);
 	}
 	
 	/**
@@ -563,20 +2021,156 @@ public class Shell {
 	 * {@link StreamCollector}.
 	 * 
 	 * @param listener
-	 *     A {@link Shell.OnShellResultListener} callback instance
+	 *     A {@link Shell.OnShellResultListener} callback instance or NULL
+	 *     
+	 * @return
+	 *     A {@link ResultFuture} that can be used to wait for, cancel or chain the execution
 	 */
-	public synchronized void executeAsync(final StreamCollector collector, final OnShellResultListener listener) {
-		if(Common.DEBUG)Log.d(TAG, "executeAsync: Starting an async shell execution");
-
-		new Thread() {
+	public ResultFuture executeAsync(final StreamCollector collector, OnShellResultListener listener) {
+		return submit(collector, new Callable<Result>() {
 			@Override
-			public void run() {
-				Result result = Shell.this.execute(collector);
+			public Result call() {
+				return Shell.this.execute(collector);
+			}
+			
+		}, listener);
+	}
+	
+	/**
+	 * Execute a list of commands asynchronous, each one as a separate execution, and get notified once all of them has finished.
+	 * 
+	 * @param commands
+	 *     The commands to execute
+	 *     
+	 * @param listener
+	 *     A {@link Shell.OnShellResultsListener} callback instance or NULL
+	 *     
+	 * @return
+	 *     One {@link ResultFuture} per command
+	 */
+	public List<ResultFuture> executeAsync(List<String> commands, OnShellResultsListener listener) {
+		List<ResultFuture> futures = new ArrayList<ResultFuture>();
+		
+		for (String command : commands) {
+			futures.add( executeAsync(command, null) );
+		}
+		
+		if (listener != null) {
+			ResultFuture.whenAll(futures, listener);
+		}
+		
+		return futures;
+	}
+	
+	/**
+	 * Internal method used to send an asynchronous execution to the executor
+	 */
+	protected ResultFuture submit(StreamCollector collector, Callable<Result> task, OnShellResultListener listener) {
+		if(Common.DEBUG)Log.d(TAG, "submit: Starting an async shell execution");
+		
+		ResultFuture future = new ResultFuture(this, collector, task);
+		future.then(listener);
+		
+		getAsyncExecutor().execute(future);
+		
+		return future;
+	}
+	
+	/**
+	 * Cancel an execution that was started by this instance. 
+	 * 
+	 * @param collector
+	 *     The {@link StreamCollector} used for the execution
+	 *     
+	 * @param interrupt
+	 *     Whether or not to kill the execution if it is already running
+	 *     
+	 * @return
+	 *     True if the execution was removed from the queue or killed
+	 */
+	protected Boolean cancelExecution(StreamCollector collector, Boolean interrupt) {
+		ShellStreamer stream = mStream;
+		
+		if (stream != null) {
+			if (stream.removeStream(collector)) {
+				/*
+				 * The stream will never be started, so nothing else will release the waiting thread
+				 */
+				collector.releaseResult(); return true;
 				
-				listener.onShellResult(result);
+			} else if (interrupt) {
+				return stream.cancelStream(collector);
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Internal comparator used to order the default async executor queue. 
+	 * {@link ResultFuture} instances are ordered by their priority deadline, anything else is run first in the order it arrives.
+	 */
+	protected static final Comparator<Runnable> mAsyncOrder = new Comparator<Runnable>() {
+		@Override
+		public int compare(Runnable lhs, Runnable rhs) {
+			long lhsDeadline = lhs instanceof ResultFuture ? ((ResultFuture) lhs).mDeadline : 0;
+			long rhsDeadline = rhs instanceof ResultFuture ? ((ResultFuture) rhs).mDeadline : 0;
+			
+			if (lhsDeadline != rhsDeadline) {
+				return lhsDeadline < rhsDeadline ? -1 : 1;
 			}
 			
-		}.start();
+			long lhsSequence = lhs instanceof ResultFuture ? ((ResultFuture) lhs).mSequence : 0;
+			long rhsSequence = rhs instanceof ResultFuture ? ((ResultFuture) rhs).mSequence : 0;
+			
+			return lhsSequence < rhsSequence ? -1 : (lhsSequence == rhsSequence ? 0 : 1);
+		}
+	};
+	
+	/**
+	 * Change the executor used for all asynchronous executions. 
+	 * Parse NULL to go back to the default executor, which uses up to {@link #ASYNC_THREADS} threads.
+	 */
+	public static void setAsyncExecutor(ExecutorService executor) {
+		mAsyncExecutor = executor;
+	}
+	
+	/**
+	 * Get the executor used for all asynchronous executions. 
+	 * 
+	 * @see #setAsyncExecutor(ExecutorService)
+	 */
+	public static ExecutorService getAsyncExecutor() {
+		ExecutorService executor = mAsyncExecutor;
+		
+		if (executor == null) {
+			synchronized (mAsyncLock) {
+				if ((executor = mAsyncExecutor) == null) {
+					final AtomicInteger count = new AtomicInteger();
+					
+					/*
+					 * The number of threads is bounded, while the queue is not. 
+					 * Running excess work on the caller's thread would block callers that expect this to be asynchronous, like the UI thread.
+					 * The queue is ordered by priority, so that waiting interactive executions are not stuck behind bulk work.
+					 */
+					ThreadPoolExecutor pool = new ThreadPoolExecutor(ASYNC_THREADS, ASYNC_THREADS, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(11, mAsyncOrder), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "ShellAsync_" + count.incrementAndGet());
+							thread.setDaemon(true);
+							
+							return thread;
+						}
+					});
+					
+					pool.allowCoreThreadTimeOut(true);
+					
+					mAsyncExecutor = executor = pool;
+				}
+			}
+		}
+		
+		return executor;
 	}
 	
 	/**
@@ -592,6 +2186,17 @@ public class Shell {
 	 * For internal usage
 	 */
 	protected void broadcastReciever(String key, Bundle data) {
+		if ("file".equals(key)) {
+			/*
+			 * Files that was changed, created, removed or moved can no longer use their cached results
+			 */
+			mResultCache.invalidate(data.getString("location"));
+			
+			if (data.getString("destination") != null) {
+				mResultCache.invalidate(data.getString("destination"));
+			}
+		}
+		
 		for (OnShellBroadcastListener recievers : mBroadcastRecievers) {
 			recievers.onShellBroadcast(key, data);
 		}
@@ -639,6 +2244,29 @@ public class Shell {
 		return mIsConnected;
 	}
 	
+	/**
+	 * Get the number of executions waiting in the queue with a specific priority
+	 * 
+	 * @see ShellStreamer#getQueueDepth(int)
+	 */
+	public Integer getQueueDepth(Integer priority) {
+		ShellStreamer stream = mStream;
+		
+		return stream != null ? stream.getQueueDepth(priority) : 0;
+	}
+	
+	/**
+	 * Check whether or not errors are kept out of the regular output, in which case commands does not need to redirect 
+	 * <code>stderr</code> in order to get output that can be parsed.
+	 * 
+	 * @see ShellStreamer#setSeparateErrors(boolean)
+	 */
+	public Boolean isSeparatingErrors() {
+		ShellStreamer stream = mStream;
+		
+		return stream != null && stream.isSeparatingErrors();
+	}
+	
 	/**
 	 * Get the current shell execution timeout. 
 	 * This is the time in milliseconds from which an execution is killed in case it has stalled. 
@@ -656,6 +2284,77 @@ public class Shell {
 			mShellTimeout = timeout;
 		}
 	}
+	
+	/**
+	 * Get the latency and throughput numbers recorded for this shell, 
+	 * or <code>NULL</code> if recording was disabled on the {@link ShellStreamer} before it was parsed to this instance.
+	 * 
+	 * @see ShellMetrics
+	 */
+	public ShellMetrics getMetrics() {
+		return mMetrics;
+	}
+	
+	/**
+	 * Record spans of the work done by this shell, or stop recording by parsing <code>NULL</code>
+	 * 
+	 * @see ShellTracer
+	 */
+	public void setTracer(ShellTracer tracer) {
+		ShellStreamer stream = mStream;
+		
+		mTracer = tracer;
+		
+		if (stream != null) {
+			stream.setTracer(tracer);
+		}
+	}
+	
+	/**
+	 * Get the {@link ShellTracer} that this shell records to, or <code>NULL</code> if tracing is disabled
+	 */
+	public ShellTracer getTracer() {
+		return mTracer;
+	}
+	
+	/**
+	 * Execute idempotent commands again if the connection is lost while they are running or waiting in the queue. 
+	 * Commands are idempotent if they are marked as read-only or cacheable in {@link Attempts}, or using {@link StreamCollector#setIdempotent(boolean)}. 
+	 * Other commands are never replayed, as they might already have changed something before the connection was lost. 
+	 * Either way, commands on a lost connection return right away rather than waiting for the timeout. 
+	 * This is disabled by default.
+	 */
+	public void setReplayOnReconnect(Boolean replay) {
+		mReplayOnReconnect = replay;
+	}
+	
+	/**
+	 * Check whether idempotent commands are executed again after a reconnect
+	 * 
+	 * @see #setReplayOnReconnect(Boolean)
+	 */
+	public Boolean isReplayOnReconnect() {
+		return mReplayOnReconnect;
+	}
+	
+	/**
+	 * Change how the shell reconnects after the connection has been lost. 
+	 * The first attempt is made right away, and the delay is doubled after each failed attempt, up to 30 seconds. 
+	 * By default only one attempt is made.
+	 * 
+	 * @param attempts
+	 *     The number of connection attempts before giving up
+	 * 
+	 * @param delay
+	 *     The delay in milliseconds before the second attempt
+	 */
+	public void setReconnectPolicy(Integer attempts, Integer delay) {
+		if (attempts >= 0 && delay >= 0) {
+			mReconnectAttempts = attempts;
+			mReconnectDelay = delay;
+		}
+	}
+	
 	/**
 	 * Add another result code that represent a successful execution. By default only '0' is used, since 
 	 * most shell commands uses '0' for success and '1' for error. But some commands uses different values, like 'cat' 
@@ -680,6 +2379,26 @@ public class Shell {
 		mResultCodes.remove(resultCode);
 	}
 	
+	/**
+	 * Make {@link Attempts} compile all of it's attempts into one shell-side fallback script, 
+	 * rather than sending each attempt as a separate execution. This saves a round trip for each failed attempt.
+	 * 
+	 * @see ScriptedCollector
+	 * @see Attempts#setScripted(Boolean)
+	 */
+	public void setScriptedAttempts(Boolean scripted) {
+		mScriptedAttempts = scripted;
+	}
+	
+	/**
+	 * Check whether or not {@link Attempts} are executed as shell-side fallback scripts
+	 * 
+	 * @see #setScriptedAttempts(Boolean)
+	 */
+	public Boolean isScriptedAttempts() {
+		return mScriptedAttempts;
+	}
+	
 	/**
 	 * Reset the stack containing result codes and set it back to default only containing '0'.
 	 * 
@@ -721,28 +2440,83 @@ public class Shell {
 	/**
 	 * Locate whichever toolbox in {@value Common#BINARIES} that supports a specific command.<br /><br />
 	 * 
+	 * This uses the {@link Capabilities} registry, and only checks the shell directly for commands that it does not yet know about.<br /><br />
+	 * 
 	 * Example: String("cat") might return String("busybox cat") or String("toolbox cat")
 	 * 
 	 * @param bin
 	 *     The command to check
 	 */
 	public String findCommand(String bin) {
-		if (!mBinaries.containsKey(bin)) {
-			for (String toolbox : Common.BINARIES) {
-				String cmd = toolbox != null && toolbox.length() > 0 ? toolbox + " " + bin : bin;
-				Result result = execute( cmd + " -h" );
-					
+		requestProbe();
+		
+		for (String toolbox : Common.BINARIES) {
+			Boolean state = Capabilities.hasCommand(toolbox, bin);
+			
+			/*
+			 * Only check the shell for commands that was not covered by the probe
+			 */
+			if (state == null) {
+				/*
+				 * A failed execution does not return any output, so the result code is dropped in order to get the error message
+				 */
+				Result result = executeShared( Capabilities.getCommand(toolbox, bin) + " -h < /dev/null 2>&1; true" );
+				
 				if (result != null) {
 					String line = result.getLine();
 					
-					if (!line.endsWith("not found") && !line.endsWith("such tool")) {
-						mBinaries.put(bin, cmd); break;
+					state = line == null || (!line.endsWith("not found") && !line.endsWith("such tool"));
+					
+					/*
+					 * A user shell should not add it's own environment to a registry that was probed as root
+					 */
+					if (mIsRoot || !Capabilities.isProbed(true)) {
+						Capabilities.putCommand(toolbox, bin, state);
 					}
 				}
 			}
+			
+			if (state != null && state) {
+				return Capabilities.getCommand(toolbox, bin);
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Extract the command name that {@link Attempts} uses to remember which binary works. 
+	 * 
+	 * Example: String("( %binary test -e '/file' && echo true )") would return String("test")
+	 */
+	protected static String getCommandVerb(String command) {
+		Matcher matcher = oPatternVerbSearch.matcher(command);
+		
+		if (matcher.find()) {
+			return matcher.group(1);
 		}
 		
-		return mBinaries.get(bin);
+		return null;
+	}
+	
+	/**
+	 * Get a copy of the binary preferences that {@link Attempts} has learned so far. 
+	 * Each key is a command name like <code>ls</code> or <code>test</code>, and the value is the entry from {@link Common#BINARIES} 
+	 * that last produced a successful result for it. An empty string is used for commands that worked without a prefix.
+	 */
+	public static Map<String, String> getBinaryPreferences() {
+		synchronized(mBinaryPreference) {
+			return new HashMap<String, String>(mBinaryPreference);
+		}
+	}
+	
+	/**
+	 * Forget all of the binary preferences that {@link Attempts} has learned
+	 * 
+	 * @see #getBinaryPreferences()
+	 */
+	public static void clearBinaryPreferences() {
+		mBinaryPreference.clear();
 	}
 	
 	/**
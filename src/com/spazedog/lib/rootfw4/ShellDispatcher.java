@@ -0,0 +1,432 @@
+/*
+ * This file is part of the RootFW Project: https://github.com/spazedog/rootfw
+ *  
+ * Copyright (c) 2015 Daniel Bergløv
+ * 
+ * RootFW is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * RootFW is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with RootFW. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.rootfw4;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.util.Log;
+
+/**
+ * Provides the threads that a {@link ShellStreamer} uses to run it's queue and read the shell output. <br /><br />
+ * 
+ * Two backends are included. {@link LooperDispatcher} gives each connection it's own {@link HandlerThread}, which is how 
+ * {@link ShellStreamer} has always worked. {@link ConcurrentDispatcher} runs the queues of all it's connections on a shared {@link Executor}, 
+ * using virtual threads where the platform has them. It only depends on <code>java.util.concurrent</code>, so it also works on a plain JVM. <br /><br />
+ * 
+ * Each {@link ShellStreamer} uses {@link #getDefault()} unless another dispatcher is set with {@link ShellStreamer#setDispatcher(ShellDispatcher)}.
+ */
+public abstract class ShellDispatcher {
+	public static final String TAG = Common.TAG + ".ShellDispatcher";
+	
+	protected static volatile ShellDispatcher mDefault;
+	
+	/**
+	 * Receives the messages of a {@link MessageQueue}, one at a time and in the order they were queued
+	 */
+	public static interface Callback {
+		public void handleMessage(int what, Object obj);
+	}
+	
+	/**
+	 * A serial message queue, similar to a {@link Handler} on it's own {@link android.os.Looper}
+	 */
+	public static interface MessageQueue {
+		/**
+		 * Add a message to the end of the queue
+		 * 
+		 * @return
+		 * 		<code>FALSE</code> if the queue has been stopped
+		 */
+		public boolean send(int what, Object obj);
+		
+		/**
+		 * Add a message to the front of the queue, so that it is handled before the ones already waiting
+		 * 
+		 * @return
+		 * 		<code>FALSE</code> if the queue has been stopped
+		 */
+		public boolean sendAtFront(int what, Object obj);
+		
+		/**
+		 * Check if there are waiting messages of a type. Parse NULL as <code>obj</code> to match any of them.
+		 */
+		public boolean hasMessages(int what, Object obj);
+		
+		/**
+		 * Remove waiting messages of a type. Parse NULL as <code>obj</code> to remove all of them.
+		 */
+		public void removeMessages(int what, Object obj);
+		
+		/**
+		 * Stop the queue. Waiting messages are dropped, while one currently being handled is allowed to finish.
+		 */
+		public void quit();
+	}
+	
+	/**
+	 * Create a new queue for a connection
+	 * 
+	 * @param name
+	 * 		A name for the queue, used for it's thread
+	 * 
+	 * @param callback
+	 * 		The callback that should handle the messages
+	 */
+	public abstract MessageQueue createQueue(String name, Callback callback);
+	
+	/**
+	 * Run a long running task, like one that reads the output of a connection until the connection is closed
+	 * 
+	 * @param name
+	 * 		A name for the task, used for it's thread
+	 */
+	public abstract void startWorker(String name, Runnable task);
+	
+	/**
+	 * Get the dispatcher used by new {@link ShellStreamer} instances. <br /><br />
+	 * 
+	 * Unless changed by {@link #setDefault(ShellDispatcher)}, this is a {@link LooperDispatcher} on Android 
+	 * and a {@link ConcurrentDispatcher} when the Android classes are not available.
+	 */
+	public static ShellDispatcher getDefault() {
+		ShellDispatcher dispatcher = mDefault;
+		
+		if (dispatcher == null) {
+			synchronized (ShellDispatcher.class) {
+				if ((dispatcher = mDefault) == null) {
+					try {
+						Class.forName("android.os.Looper");
+						
+						dispatcher = new LooperDispatcher();
+					
+					} catch (ClassNotFoundException e) {
+						dispatcher = new ConcurrentDispatcher();
+					}
+					
+					mDefault = dispatcher;
+				}
+			}
+		}
+		
+		return dispatcher;
+	}
+	
+	/**
+	 * Change the dispatcher used by new {@link ShellStreamer} instances. 
+	 * Parse NULL to go back to the default one. 
+	 */
+	public static void setDefault(ShellDispatcher dispatcher) {
+		mDefault = dispatcher;
+	}
+	
+	/**
+	 * Gives each queue and worker it's own thread, running queues on an Android {@link android.os.Looper}
+	 */
+	public static class LooperDispatcher extends ShellDispatcher {
+		@Override
+		public MessageQueue createQueue(String name, final Callback callback) {
+			HandlerThread thread = new HandlerThread(name);
+			thread.start();
+			
+			final Handler handler = new Handler(thread.getLooper()) {
+				@Override
+				public void handleMessage(Message msg) {
+					callback.handleMessage(msg.what, msg.obj);
+				}
+			};
+			
+			return new MessageQueue() {
+				@Override
+				public boolean send(int what, Object obj) {
+					return handler.sendMessage(handler.obtainMessage(what, obj));
+				}
+				
+				@Override
+				public boolean sendAtFront(int what, Object obj) {
+					return handler.sendMessageAtFrontOfQueue(handler.obtainMessage(what, obj));
+				}
+				
+				@Override
+				public boolean hasMessages(int what, Object obj) {
+					return handler.hasMessages(what, obj);
+				}
+				
+				@Override
+				public void removeMessages(int what, Object obj) {
+					handler.removeMessages(what, obj);
+				}
+				
+				@Override
+				public void quit() {
+					handler.getLooper().quit();
+				}
+			};
+		}
+		
+		@Override
+		public void startWorker(String name, Runnable task) {
+			new Thread(task, name).start();
+		}
+	}
+	
+	/**
+	 * Runs all queues and workers on a shared {@link Executor}. <br /><br />
+	 * 
+	 * A queue only occupies a thread while it has messages, so idle connections cost no threads at all. 
+	 * Note that the shell output can only be read using blocking I/O, so a connection still occupies a thread while a stream is running, 
+	 * and for as long as it is connected in pipelined mode or while errors are separated. With virtual threads this is cheap, 
+	 * with regular threads it is not much different from {@link LooperDispatcher}.
+	 */
+	public static class ConcurrentDispatcher extends ShellDispatcher {
+		protected final Executor mExecutor;
+		
+		/**
+		 * Create a dispatcher using virtual threads when available, and otherwise a pool of daemon threads that is shared by all of it's connections
+		 */
+		public ConcurrentDispatcher() {
+			this(createExecutor());
+		}
+		
+		/**
+		 * Create a dispatcher using a specific executor. 
+		 * The executor must not bound the number of threads below the number of tasks blocked reading from a connection, 
+		 * as described in {@link ConcurrentDispatcher}.
+		 */
+		public ConcurrentDispatcher(Executor executor) {
+			mExecutor = executor;
+		}
+		
+		/**
+		 * Create an executor using virtual threads, if the platform has them. 
+		 * Reflection is used so that this also loads on older platforms. 
+		 */
+		protected static Executor createExecutor() {
+			try {
+				Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				
+				return (ExecutorService) method.invoke(null);
+			
+			} catch (Throwable e) {
+				if(Common.DEBUG)Log.d(TAG, "createExecutor: Virtual threads are not available, using a thread pool");
+			}
+			
+			final AtomicInteger count = new AtomicInteger();
+			
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "ShellDispatcher_" + count.incrementAndGet());
+					thread.setDaemon(true);
+					
+					return thread;
+				}
+			});
+		}
+		
+		/**
+		 * Get the executor that the queues and workers run on
+		 */
+		public Executor getExecutor() {
+			return mExecutor;
+		}
+		
+		@Override
+		public MessageQueue createQueue(String name, Callback callback) {
+			return new SerialQueue(name, callback, mExecutor);
+		}
+		
+		@Override
+		public void startWorker(final String name, final Runnable task) {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					runNamed(name, task);
+				}
+			});
+		}
+		
+		/**
+		 * Run a task with the name of the current thread changed, so that the thread can be identified while it works for a connection
+		 */
+		protected static void runNamed(String name, Runnable task) {
+			Thread thread = Thread.currentThread();
+			String oldName = thread.getName();
+			
+			thread.setName(name);
+			
+			try {
+				task.run();
+			
+			} finally {
+				thread.setName(oldName);
+			}
+		}
+	}
+	
+	/**
+	 * A {@link MessageQueue} that handles it's messages as a task on an {@link Executor}, 
+	 * which is only scheduled while there are messages waiting
+	 */
+	protected static class SerialQueue implements MessageQueue, Runnable {
+		protected final String mName;
+		protected final Callback mCallback;
+		protected final Executor mExecutor;
+		
+		protected final LinkedList<QueueMessage> mMessages = new LinkedList<QueueMessage>();
+		protected boolean mScheduled = false;
+		protected boolean mQuit = false;
+		
+		protected static class QueueMessage {
+			public final int what;
+			public final Object obj;
+			
+			public QueueMessage(int what, Object obj) {
+				this.what = what;
+				this.obj = obj;
+			}
+			
+			public boolean matches(int what, Object obj) {
+				return this.what == what && (obj == null || this.obj == obj);
+			}
+		}
+		
+		public SerialQueue(String name, Callback callback, Executor executor) {
+			mName = name;
+			mCallback = callback;
+			mExecutor = executor;
+		}
+		
+		@Override
+		public boolean send(int what, Object obj) {
+			synchronized (mMessages) {
+				if (!mQuit) {
+					mMessages.addLast(new QueueMessage(what, obj));
+					schedule(); return true;
+				}
+				
+				return false;
+			}
+		}
+		
+		@Override
+		public boolean sendAtFront(int what, Object obj) {
+			synchronized (mMessages) {
+				if (!mQuit) {
+					mMessages.addFirst(new QueueMessage(what, obj));
+					schedule(); return true;
+				}
+				
+				return false;
+			}
+		}
+		
+		@Override
+		public boolean hasMessages(int what, Object obj) {
+			synchronized (mMessages) {
+				for (QueueMessage message : mMessages) {
+					if (message.matches(what, obj)) {
+						return true;
+					}
+				}
+				
+				return false;
+			}
+		}
+		
+		@Override
+		public void removeMessages(int what, Object obj) {
+			synchronized (mMessages) {
+				Iterator<QueueMessage> iterator = mMessages.iterator();
+				
+				while (iterator.hasNext()) {
+					if (iterator.next().matches(what, obj)) {
+						iterator.remove();
+					}
+				}
+			}
+		}
+		
+		@Override
+		public void quit() {
+			synchronized (mMessages) {
+				mQuit = true;
+				mMessages.clear();
+			}
+		}
+		
+		/**
+		 * Make sure that a task is scheduled to handle the waiting messages. 
+		 * Must be called while holding the lock on the messages. 
+		 */
+		protected void schedule() {
+			if (!mScheduled && !mMessages.isEmpty()) {
+				mScheduled = true;
+				mExecutor.execute(this);
+			}
+		}
+		
+		@Override
+		public void run() {
+			Thread thread = Thread.currentThread();
+			String oldName = thread.getName();
+			boolean done = false;
+			
+			thread.setName(mName);
+			
+			try {
+				while (!done) {
+					QueueMessage message;
+					
+					synchronized (mMessages) {
+						if ((message = mMessages.poll()) == null) {
+							mScheduled = false;
+							done = true; break;
+						}
+					}
+					
+					mCallback.handleMessage(message.what, message.obj);
+				}
+			
+			} finally {
+				thread.setName(oldName);
+				
+				/*
+				 * If the callback threw, the remaining messages would otherwise never be handled
+				 */
+				if (!done) {
+					synchronized (mMessages) {
+						mScheduled = false;
+						schedule();
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,368 @@
+/*
+ * This file is part of the RootFW Project: https://github.com/spazedog/rootfw
+ *  
+ * Copyright (c) 2015 Daniel Bergløv
+ * 
+ * RootFW is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * RootFW is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with RootFW. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.rootfw4;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects latency and throughput numbers for the commands executed by a {@link ShellStreamer} and it's {@link Shell}. <br /><br />
+ * 
+ * Recording only costs a few atomic operations per command, so unlike the debug log it can be left enabled in production.
+ * Each {@link ShellStreamer} has it's own instance by default, which is available from {@link ShellStreamer#getMetrics()}
+ * and {@link Shell#getMetrics()}. The connections of a {@link ShellPool} share the one of the pool.
+ * Recording can be disabled by parsing <code>NULL</code> to {@link ShellStreamer#setMetrics(ShellMetrics)}. <br /><br />
+ * 
+ * Times are recorded in microseconds.
+ */
+public class ShellMetrics {
+	public static final String TAG = Common.TAG + ".ShellMetrics";
+	
+	protected final Histogram mQueueWait = new Histogram();
+	protected final Histogram mExecutionTime = new Histogram();
+	protected final Histogram mBytesRead = new Histogram();
+	protected final Histogram mLinesRead = new Histogram();
+	protected final Histogram mAttempts = new Histogram();
+	
+	protected final AtomicLong mReconnects = new AtomicLong();
+	protected final AtomicLong mTimeouts = new AtomicLong();
+	protected final AtomicLong mDisconnects = new AtomicLong();
+	
+	/**
+	 * A histogram that can be updated from multiple threads without locking. <br /><br />
+	 * 
+	 * Values are counted in buckets that grow exponentially, with 8 buckets for each power of two.
+	 * This keeps the memory use fixed, while percentiles are accurate to within 12.5% of the real value.
+	 */
+	public static class Histogram {
+		protected static final int SUB_BITS = 3;
+		protected static final int SUB_COUNT = 1 << SUB_BITS;
+		protected static final int BUCKET_COUNT = (64 - SUB_BITS + 1) * SUB_COUNT;
+		
+		protected final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+		protected final AtomicLong mCount = new AtomicLong();
+		protected final AtomicLong mSum = new AtomicLong();
+		protected final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+		protected final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+		
+		/**
+		 * Get the bucket that a value is counted in
+		 */
+		protected static int indexOf(long value) {
+			if (value < SUB_COUNT) {
+				return (int) value;
+			}
+			
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+			
+			return ((exponent - SUB_BITS + 1) * SUB_COUNT) + sub;
+		}
+		
+		/**
+		 * Get the largest value that is counted in a bucket
+		 */
+		protected static long highestOf(int index) {
+			if (index < SUB_COUNT) {
+				return index;
+			}
+			
+			int exponent = (index / SUB_COUNT) + SUB_BITS - 1;
+			long lowest = (long) (SUB_COUNT + (index % SUB_COUNT)) << (exponent - SUB_BITS);
+			
+			return lowest + (1L << (exponent - SUB_BITS)) - 1;
+		}
+		
+		/**
+		 * Add a value to the histogram. Negative values are counted as '0'.
+		 */
+		public void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			
+			mBuckets.incrementAndGet(indexOf(value));
+			mCount.incrementAndGet();
+			mSum.addAndGet(value);
+			
+			long current;
+			
+			while (value < (current = mMin.get()) && !mMin.compareAndSet(current, value));
+			while (value > (current = mMax.get()) && !mMax.compareAndSet(current, value));
+		}
+		
+		/**
+		 * Get the number of recorded values
+		 */
+		public long getCount() {
+			return mCount.get();
+		}
+		
+		/**
+		 * Take a copy of the current state, which can be used to get percentiles.
+		 * Values recorded while the copy is being made might only be partly included.
+		 */
+		public Snapshot snapshot() {
+			long[] buckets = new long[BUCKET_COUNT];
+			
+			for (int i=0; i < BUCKET_COUNT; i++) {
+				buckets[i] = mBuckets.get(i);
+			}
+			
+			return new Snapshot(buckets, mCount.get(), mSum.get(), mMin.get(), mMax.get());
+		}
+		
+		/**
+		 * Remove all recorded values
+		 */
+		public void reset() {
+			for (int i=0; i < BUCKET_COUNT; i++) {
+				mBuckets.set(i, 0);
+			}
+			
+			mCount.set(0);
+			mSum.set(0);
+			mMin.set(Long.MAX_VALUE);
+			mMax.set(Long.MIN_VALUE);
+		}
+	}
+	
+	/**
+	 * A copy of a {@link Histogram} at a specific time
+	 */
+	public static class Snapshot {
+		protected final long[] mBuckets;
+		protected final long mCount;
+		protected final long mSum;
+		protected final long mMin;
+		protected final long mMax;
+		
+		public Snapshot(long[] buckets, long count, long sum, long min, long max) {
+			mBuckets = buckets;
+			mCount = count;
+			mSum = sum;
+			mMin = count > 0 ? min : 0;
+			mMax = count > 0 ? max : 0;
+		}
+		
+		/**
+		 * Get the number of recorded values
+		 */
+		public long getCount() {
+			return mCount;
+		}
+		
+		/**
+		 * Get the sum of all recorded values
+		 */
+		public long getSum() {
+			return mSum;
+		}
+		
+		/**
+		 * Get the smallest recorded value, or '0' if nothing has been recorded
+		 */
+		public long getMin() {
+			return mMin;
+		}
+		
+		/**
+		 * Get the largest recorded value, or '0' if nothing has been recorded
+		 */
+		public long getMax() {
+			return mMax;
+		}
+		
+		/**
+		 * Get the average of the recorded values
+		 */
+		public double getMean() {
+			return mCount > 0 ? (double) mSum / mCount : 0;
+		}
+		
+		/**
+		 * Get the value that the given percentage of the recorded values are below or equal to
+		 * 
+		 * @param percentile
+		 *     A percentage between 0 and 100, like <code>99.9</code>
+		 */
+		public long getPercentile(double percentile) {
+			long total = 0;
+			
+			for (long count : mBuckets) {
+				total += count;
+			}
+			
+			if (total == 0) {
+				return 0;
+			}
+			
+			long rank = (long) Math.ceil((Math.min(Math.max(percentile, 0), 100) / 100) * total);
+			long seen = 0;
+			
+			for (int i=0; i < mBuckets.length; i++) {
+				seen += mBuckets[i];
+				
+				if (seen >= rank && seen > 0) {
+					return Math.max(Math.min(Histogram.highestOf(i), mMax), mMin);
+				}
+			}
+			
+			return mMax;
+		}
+		
+		@Override
+		public String toString() {
+			return "count=" + mCount + " min=" + mMin + " mean=" + Math.round(getMean()) + " p50=" + getPercentile(50) +
+					" p90=" + getPercentile(90) + " p99=" + getPercentile(99) + " max=" + mMax;
+		}
+	}
+	
+	/**
+	 * Record a command that was executed by a {@link ShellStreamer}
+	 * 
+	 * @param nanos
+	 *     The time from writing the command until it's terminator was read
+	 * 
+	 * @param bytes
+	 *     The number of output bytes read
+	 * 
+	 * @param lines
+	 *     The number of output lines read
+	 */
+	public void recordExecution(long nanos, long bytes, long lines) {
+		mExecutionTime.record(nanos / 1000);
+		mBytesRead.record(bytes);
+		mLinesRead.record(lines);
+	}
+	
+	/**
+	 * Record the time that a command waited in the queue of a {@link ShellStreamer}, in nanoseconds
+	 */
+	public void recordQueueWait(long nanos) {
+		mQueueWait.record(nanos / 1000);
+	}
+	
+	/**
+	 * Record the number of attempts that was tried before a {@link Shell} execution finished
+	 */
+	public void recordAttempts(long attempts) {
+		mAttempts.record(attempts);
+	}
+	
+	/**
+	 * Record that the connection was re-established after being lost
+	 */
+	public void recordReconnect() {
+		mReconnects.incrementAndGet();
+	}
+	
+	/**
+	 * Record that an execution timed out
+	 */
+	public void recordTimeout() {
+		mTimeouts.incrementAndGet();
+	}
+	
+	/**
+	 * Record that a command was lost because the connection to the shell was lost
+	 */
+	public void recordDisconnect() {
+		mDisconnects.incrementAndGet();
+	}
+	
+	/**
+	 * Get the time in microseconds from a command being added to the queue until it was started
+	 */
+	public Histogram getQueueWait() {
+		return mQueueWait;
+	}
+	
+	/**
+	 * Get the time in microseconds from a command being written to the shell until it's terminator was read.
+	 * In pipelined mode this includes the time waiting for earlier commands that was written to the shell at the same time.
+	 */
+	public Histogram getExecutionTime() {
+		return mExecutionTime;
+	}
+	
+	/**
+	 * Get the number of output bytes read for each command
+	 */
+	public Histogram getBytesRead() {
+		return mBytesRead;
+	}
+	
+	/**
+	 * Get the number of output lines read for each command
+	 */
+	public Histogram getLinesRead() {
+		return mLinesRead;
+	}
+	
+	/**
+	 * Get the number of attempts tried for each execution using {@link Shell.Attempts} or multiple commands
+	 */
+	public Histogram getAttempts() {
+		return mAttempts;
+	}
+	
+	/**
+	 * Get the number of times that the connection was re-established after being lost
+	 */
+	public long getReconnectCount() {
+		return mReconnects.get();
+	}
+	
+	/**
+	 * Get the number of executions that timed out
+	 */
+	public long getTimeoutCount() {
+		return mTimeouts.get();
+	}
+	
+	/**
+	 * Get the number of commands that was lost along with the connection to the shell
+	 */
+	public long getDisconnectCount() {
+		return mDisconnects.get();
+	}
+	
+	/**
+	 * Remove all recorded values
+	 */
+	public void reset() {
+		mQueueWait.reset();
+		mExecutionTime.reset();
+		mBytesRead.reset();
+		mLinesRead.reset();
+		mAttempts.reset();
+		mReconnects.set(0);
+		mTimeouts.set(0);
+		mDisconnects.set(0);
+	}
+	
+	@Override
+	public String toString() {
+		return "queueWait[" + mQueueWait.snapshot() + "] execution[" + mExecutionTime.snapshot() + "] bytes[" + mBytesRead.snapshot() +
+				"] lines[" + mLinesRead.snapshot() + "] attempts[" + mAttempts.snapshot() + "] reconnects=" + mReconnects.get() +
+				" timeouts=" + mTimeouts.get() + " disconnects=" + mDisconnects.get();
+	}
+}
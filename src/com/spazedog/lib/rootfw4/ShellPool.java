@@ -0,0 +1,568 @@
+/*
+ * This file is part of the RootFW Project: https://github.com/spazedog/rootfw
+ *  
+ * Copyright (c) 2015 Daniel Bergløv
+ * 
+ * RootFW is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * RootFW is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with RootFW. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.rootfw4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * A {@link Shell} that spreads it's executions across a pool of shell connections. <br /><br />
+ * 
+ * Each {@link Shell} only has one shell process and one queue, so a long running command will stall
+ * everything else that is sent to it. This class keeps between <code>minSize</code> and <code>maxSize</code> connections
+ * and sends each execution to the connection with the least amount of work. New connections are only created when all of the
+ * current ones are busy, and connections above <code>minSize</code> are closed again once they have been idle for longer than {@link #setIdleTimeout(Integer)}. <br /><br />
+ * 
+ * New connections are established in the background, while the execution that caused it is sent to one of the existing connections. 
+ * Idle connections are closed by a worker from the {@link ShellDispatcher}, which only runs while the pool is above <code>minSize</code>. <br /><br />
+ * 
+ * Since this extends {@link Shell}, it can be used anywhere a regular {@link Shell} is expected, including
+ * all of the utility classes like {@link com.spazedog.lib.rootfw4.utils.File}.
+ */
+public class ShellPool extends Shell {
+	public static final String TAG = Common.TAG + ".ShellPool";
+	
+	protected final Object mPoolLock = new Object();
+	protected final List<Member> mMembers = new ArrayList<Member>();
+	
+	protected Integer mMinSize;
+	protected Integer mMaxSize;
+	protected Integer mIdleTimeout = 30000;
+	protected Integer mPending = 0;
+	protected Integer mNextMember = 0;
+	protected Boolean mEvicting = false;
+	protected ShellDispatcher mDispatcher;
+	
+	/**
+	 * Internal class used to keep track of each connection in the pool
+	 */
+	protected static class Member {
+		public final Shell shell;
+		public int load = 0;
+		public long lastUsed = System.currentTimeMillis();
+		
+		public Member(Shell shell) {
+			this.shell = shell;
+		}
+	}
+	
+	/**
+	 * Create a new pool and establish the initial <code>minSize</code> connections.
+	 * 
+	 * @param requestRoot
+	 *     Whether or not to request root privileges for the shell connections
+	 * 
+	 * @param minSize
+	 *     The number of connections that should always be kept open (At least 1)
+	 * 
+	 * @param maxSize
+	 *     The max number of connections that the pool is allowed to grow to
+	 */
+	public ShellPool(Boolean requestRoot, Integer minSize, Integer maxSize) {
+		this(requestRoot, minSize, maxSize, null);
+	}
+	
+	/**
+	 * Create a new pool whose connections run on a specific {@link ShellDispatcher}. 
+	 * Sharing a {@link ShellDispatcher.ConcurrentDispatcher} means that idle connections in the pool does not each keep a thread.
+	 * 
+	 * @param requestRoot
+	 *     Whether or not to request root privileges for the shell connections
+	 * 
+	 * @param minSize
+	 *     The number of connections that should always be kept open (At least 1)
+	 * 
+	 * @param maxSize
+	 *     The max number of connections that the pool is allowed to grow to
+	 * 
+	 * @param dispatcher
+	 *     The dispatcher to use, or NULL for {@link ShellDispatcher#getDefault()}
+	 */
+	public ShellPool(Boolean requestRoot, Integer minSize, Integer maxSize, ShellDispatcher dispatcher) {
+		super();
+		
+		mDispatcher = dispatcher;
+		mIsRoot = requestRoot;
+		mMinSize = minSize > 0 ? minSize : 1;
+		mMaxSize = maxSize > mMinSize ? maxSize : mMinSize;
+		
+		for (int i=0; i < mMinSize; i++) {
+			Shell shell = createShell();
+			
+			if (shell != null) {
+				mMembers.add(new Member(shell));
+			}
+		}
+		
+		mIsConnected = mMembers.size() > 0;
+		
+		if (mIsConnected) {
+			mInstances.add(this);
+		}
+	}
+	
+	/**
+	 * Create a new connection for the pool. This can be overridden in order to configure
+	 * each connection, for example by parsing a {@link ShellStreamer} with {@link ShellStreamer#setPipelined(boolean)} enabled.
+	 * 
+	 * @return
+	 *     A connected {@link Shell} or NULL on failure
+	 */
+	protected Shell createShell() {
+		ShellStreamer stream = createStreamer();
+		stream.setMetrics(mMetrics);
+		stream.setTracer(mTracer);
+		stream.setDispatcher(mDispatcher);
+		
+		Shell shell = new Shell(mIsRoot, stream);
+		
+		if (shell.isConnected()) {
+			shell.setTimeout(mShellTimeout);
+			shell.setReplayOnReconnect(mReplayOnReconnect);
+			shell.setReconnectPolicy(mReconnectAttempts, mReconnectDelay);
+			
+			return shell;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Pick the connection with the least amount of work, using round-robin on equal load. <br /><br />
+	 * 
+	 * Once this leaves no idle connections, a new one is added in the background, as long as the pool has not yet reached <code>maxSize</code>. 
+	 * That way an idle connection is usually ready for the next execution, without anyone waiting for it to connect. 
+	 * Only when there are no connections left at all, does the caller have to wait for a new one.
+	 */
+	protected Member acquire() {
+		List<Member> expired = new ArrayList<Member>();
+		Member member = null;
+		boolean grow = false;
+		
+		synchronized (mPoolLock) {
+			for (int i=mMembers.size()-1; i >= 0; i--) {
+				if (!mMembers.get(i).shell.isConnected()) {
+					expired.add( mMembers.remove(i) );
+				}
+			}
+			
+			int size = mMembers.size();
+			
+			for (int i=0; i < size; i++) {
+				Member current = mMembers.get( (mNextMember + i) % size );
+				
+				if (member == null || current.load < member.load) {
+					member = current;
+				}
+			}
+			
+			mNextMember = size > 0 ? (mNextMember + 1) % size : 0;
+			
+			if (member != null) {
+				member.load += 1;
+			}
+			
+			if (size < mMaxSize && (member == null || mPending == 0)) {
+				grow = true;
+			
+				for (int i=0; i < size; i++) {
+					if (mMembers.get(i).load == 0) {
+						grow = false; break;
+					}
+				}
+				
+				if (grow) {
+					mPending += 1;
+				}
+			}
+		}
+		
+		for (Member current : expired) {
+			current.shell.destroy();
+		}
+		
+		if (grow) {
+			if (member != null) {
+				if(Common.DEBUG)Log.d(TAG, "acquire: No connections are idle, adding a new one to the pool in the background");
+			
+				getWorkerDispatcher().startWorker("ShellPool_Grow", new Runnable(){
+					@Override
+					public void run() {
+						grow();
+					}
+				});
+			
+			} else {
+				if(Common.DEBUG)Log.d(TAG, "acquire: There are no connections left, adding a new one to the pool");
+				
+				member = grow();
+				
+				synchronized (mPoolLock) {
+					if (member == null && mMembers.size() > 0) {
+						member = mMembers.get(0);
+					}
+				
+					if (member != null) {
+						member.load += 1;
+					}
+				}
+			}
+		}
+		
+		return member;
+	}
+	
+	/**
+	 * Add a new connection to the pool. This is counted in <code>mPending</code> by the caller, until it has been added.
+	 * 
+	 * @return
+	 *     The new connection, or NULL on failure
+	 */
+	protected Member grow() {
+		Shell shell = createShell();
+		Member member = null;
+		
+		synchronized (mPoolLock) {
+			mPending -= 1;
+			
+			if (shell != null && mIsConnected) {
+				member = new Member(shell);
+				mMembers.add(member);
+			}
+		}
+		
+		if (shell != null && member == null) {
+			shell.destroy();
+		}
+		
+		if (member != null) {
+			startEviction();
+		}
+		
+		return member;
+	}
+	
+	/**
+	 * Start the worker that closes idle connections, unless it is already running or not needed
+	 */
+	protected void startEviction() {
+		synchronized (mPoolLock) {
+			if (mEvicting || mIdleTimeout <= 0 || mMembers.size() <= mMinSize) {
+				return;
+			}
+			
+			mEvicting = true;
+		}
+		
+		getWorkerDispatcher().startWorker("ShellPool_Evict", new Runnable(){
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		});
+	}
+	
+	/**
+	 * Close connections above <code>minSize</code> once they have been idle for longer than the idle timeout. 
+	 * This keeps running until the pool is back at <code>minSize</code>, the timeout is disabled or the pool is destroyed.
+	 */
+	protected void evictIdle() {
+		while (true) {
+			List<Member> expired = new ArrayList<Member>();
+			
+			synchronized (mPoolLock) {
+				if (!mIsConnected || mIdleTimeout <= 0 || mMembers.size() <= mMinSize) {
+					mEvicting = false; return;
+				}
+				
+				long time = System.currentTimeMillis();
+				long wait = mIdleTimeout;
+				
+				for (int i=mMembers.size()-1; i >= 0 && mMembers.size() > mMinSize; i--) {
+					Member current = mMembers.get(i);
+					
+					if (current.load == 0) {
+						long idle = time - current.lastUsed;
+						
+						if (idle > mIdleTimeout) {
+							if(Common.DEBUG)Log.d(TAG, "evictIdle: Evicting idle connection");
+							
+							expired.add( mMembers.remove(i) );
+						
+						} else {
+							wait = Math.min(wait, mIdleTimeout - idle + 1);
+						}
+					}
+				}
+				
+				if (expired.size() == 0) {
+					try {
+						mPoolLock.wait(wait);
+					
+					} catch (InterruptedException e) {
+						mEvicting = false; return;
+					}
+				}
+			}
+			
+			for (Member current : expired) {
+				current.shell.destroy();
+			}
+		}
+	}
+	
+	/**
+	 * Get the dispatcher that background work of the pool is started from
+	 */
+	protected ShellDispatcher getWorkerDispatcher() {
+		return mDispatcher != null ? mDispatcher : ShellDispatcher.getDefault();
+	}
+	
+	/**
+	 * Return a connection to the pool once an execution has finished
+	 */
+	protected void release(Member member) {
+		synchronized (mPoolLock) {
+			member.load -= 1;
+			member.lastUsed = System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Result execute(StreamCollector collector) {
+		if (mIsConnected) {
+			Member member = acquire();
+			
+			if (member != null) {
+				try {
+					return member.shell.execute(collector);
+				
+				} finally {
+					release(member);
+				}
+			
+			} else {
+				if(Common.DEBUG)Log.d(TAG, "execute: No more connections available in the pool");
+				
+				destroy();
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected Boolean cancelExecution(StreamCollector collector, Boolean interrupt) {
+		List<Member> members = null;
+		
+		synchronized (mPoolLock) {
+			members = new ArrayList<Member>(mMembers);
+		}
+		
+		for (Member member : members) {
+			if (member.shell.cancelExecution(collector, interrupt)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Boolean isConnected() {
+		return mIsConnected;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setTimeout(Integer timeout) {
+		super.setTimeout(timeout);
+		
+		synchronized (mPoolLock) {
+			for (Member member : mMembers) {
+				member.shell.setTimeout(timeout);
+			}
+		}
+	}
+	
+	/**
+	 * Get the {@link ShellDispatcher} used by the connections in this pool, or NULL if they use {@link ShellDispatcher#getDefault()}
+	 */
+	public ShellDispatcher getDispatcher() {
+		return mDispatcher;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setTracer(ShellTracer tracer) {
+		super.setTracer(tracer);
+		
+		synchronized (mPoolLock) {
+			for (Member member : mMembers) {
+				member.shell.setTracer(tracer);
+			}
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setReplayOnReconnect(Boolean replay) {
+		super.setReplayOnReconnect(replay);
+		
+		synchronized (mPoolLock) {
+			for (Member member : mMembers) {
+				member.shell.setReplayOnReconnect(replay);
+			}
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setReconnectPolicy(Integer attempts, Integer delay) {
+		super.setReconnectPolicy(attempts, delay);
+		
+		synchronized (mPoolLock) {
+			for (Member member : mMembers) {
+				member.shell.setReconnectPolicy(attempts, delay);
+			}
+		}
+	}
+	
+	/**
+	 * Change the time in milliseconds that a connection above <code>minSize</code> is allowed to stay idle before it is closed.
+	 * If this is set to '0', connections will never be evicted.
+	 */
+	public void setIdleTimeout(Integer timeout) {
+		if (timeout >= 0) {
+			synchronized (mPoolLock) {
+				mIdleTimeout = timeout;
+				mPoolLock.notifyAll();
+			}
+			
+			startEviction();
+		}
+	}
+	
+	/**
+	 * Get the time in milliseconds that a connection above <code>minSize</code> is allowed to stay idle before it is closed.
+	 */
+	public Integer getIdleTimeout() {
+		return mIdleTimeout;
+	}
+	
+	/**
+	 * Get the number of connections currently in the pool
+	 */
+	public Integer size() {
+		synchronized (mPoolLock) {
+			return mMembers.size();
+		}
+	}
+	
+	/**
+	 * Get the number of executions currently running or waiting in the pool
+	 */
+	public Integer getLoad() {
+		synchronized (mPoolLock) {
+			int load = 0;
+			
+			for (Member member : mMembers) {
+				load += member.load;
+			}
+			
+			return load;
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Integer getQueueDepth(Integer priority) {
+		synchronized (mPoolLock) {
+			int depth = 0;
+			
+			for (Member member : mMembers) {
+				depth += member.shell.getQueueDepth(priority);
+			}
+			
+			return depth;
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Boolean isSeparatingErrors() {
+		synchronized (mPoolLock) {
+			return mMembers.size() > 0 && mMembers.get(0).shell.isSeparatingErrors();
+		}
+	}
+	
+	/**
+	 * Close all of the connections in the pool and release all data stored in this instance.
+	 */
+	@Override
+	public void destroy() {
+		List<Member> members = null;
+		
+		synchronized (mPoolLock) {
+			if (!mIsConnected) {
+				return;
+			}
+			
+			members = new ArrayList<Member>(mMembers);
+			mMembers.clear();
+			mIsConnected = false;
+			mPoolLock.notifyAll();
+		}
+		
+		for (Member member : members) {
+			member.shell.destroy();
+		}
+		
+		mInstances.remove(this);
+		mBroadcastRecievers.clear();
+		
+		for (OnShellConnectionListener reciever : mConnectionRecievers) {
+			reciever.onShellDisconnect();
+		}
+	}
+}
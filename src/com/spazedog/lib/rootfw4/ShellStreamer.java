@@ -22,16 +22,24 @@ package com.spazedog.lib.rootfw4;
 import java.io.BufferedReader;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
 import android.util.Log;
 
+import com.spazedog.lib.rootfw4.ShellDispatcher.Callback;
+import com.spazedog.lib.rootfw4.ShellDispatcher.MessageQueue;
+
 /**
  * This class replaces the old {@link ShellStream}.<br /><br />
  * 
@@ -52,21 +60,111 @@ public class ShellStreamer {
 	
 	protected static int mThreadCount = 0;
 	protected static String mCommandEnd = "EOL:a00c38d8:EOL";
+	protected static String mErrorEnd = "EOE:a00c38d8:EOE";
+	protected static final Random mFrameRandom = new Random();
+	
+	/**
+	 * Priority for streams that someone is actively waiting on, like an UI action
+	 */
+	public static final int PRIORITY_INTERACTIVE = 0;
+	
+	/**
+	 * Default priority for streams
+	 */
+	public static final int PRIORITY_NORMAL = 1;
+	
+	/**
+	 * Priority for background work like scans or batches, that should not delay anything else
+	 */
+	public static final int PRIORITY_BULK = 2;
+	
+	/**
+	 * The time in milliseconds a queued stream has to wait before it is ordered like a stream from the priority above it. 
+	 * This ensures that lower priorities still get to run under continuous load from higher ones.
+	 */
+	public static volatile int PRIORITY_AGING = 1000;
+	
+	/**
+	 * Result code parsed to {@link StreamListener#onStreamStop(ShellStreamer, int)} when the connection was lost before the stream reached it's terminator. 
+	 * Shell result codes are never negative, so this cannot be confused with a real result.
+	 */
+	public static final int RESULT_DISCONNECTED = -1;
 	
 	protected volatile boolean mIsRoot = false;
 	protected volatile boolean mIsBusy = false;
 	protected volatile boolean mRepeatStream = false;
+	
+	protected volatile boolean mPipelined = false;
+	protected volatile boolean mFramed = false;
+	protected volatile boolean mPipelineActive = false;
+	protected volatile int mPipelineTag = 0;
+	protected volatile int mPipelineLimit = 16;
+	
+	protected volatile boolean mSeparateErrors = false;
+	protected volatile boolean mErrorsActive = false;
+	protected volatile int mErrorTag = 0;
+	protected volatile int mErrorTagDone = 0;
+	protected volatile int mStreamErrorTag = 0;
+	protected volatile int mErrorTimeout = 1000;
+	
+	protected volatile int mShellPid = 0;
+	protected volatile StreamListener mCurrentListener;
 
 	protected volatile Process mConnection;
 	
+	protected volatile Process mKillProcess;
+	protected volatile DataOutputStream mKillInput;
+	protected volatile BufferedReader mKillOutput;
+	protected final Object mKillLock = new Object();
+	protected boolean mKillRunning = false;
+	protected boolean mKillPending = false;
+	protected StreamListener mKillTarget;
+	
 	protected volatile DataOutputStream mStdInput;
-	protected volatile BufferedReader mStdOutput;
+	protected volatile Thread mGatherThread;
+	protected final Object mWriteLock = new Object();
+	protected byte[] mWriteBuffer = new byte[1024];
+	protected byte[] mSpareBuffer;
+	protected int mWriteLength = 0;
+	protected boolean mFlushing = false;
+	protected int mWriteLimit = 16384;
+	protected volatile ShellInputStream mStdOutput;
+	protected volatile ShellInputStream mStdError;
+	protected volatile String mStreamFrame;
 	
+	protected volatile ShellDispatcher mDispatcher = ShellDispatcher.getDefault();
 	protected volatile QueueHandler mQueueHandler;
+	protected volatile Runnable mPipelineReader;
+	protected volatile Runnable mErrorReader;
+	
+	protected final ConcurrentLinkedQueue<PipelineEntry> mPipeline = new ConcurrentLinkedQueue<PipelineEntry>();
+	protected final ConcurrentLinkedQueue<PipelineEntry> mErrorPipeline = new ConcurrentLinkedQueue<PipelineEntry>();
+	
+	protected final PriorityQueue<QueueEntry> mQueue = new PriorityQueue<QueueEntry>();
+	protected final int[] mQueueDepth = new int[PRIORITY_BULK+1];
+	protected long mQueueSequence = 0;
+	
+	protected volatile ShellMetrics mMetrics = new ShellMetrics();
+	protected volatile ShellTracer mTracer;
+	protected String mTraceCommand;
+	
+	/*
+	 * Only used by the thread reading the output, which is the queue handler in regular mode and the pipeline reader in pipelined mode
+	 */
+	protected long mReadBytes = 0;
+	protected long mReadLines = 0;
+	protected long mLastStop = 0;
 	
 	protected final Set<ConnectionListener> mConnectionListeners = new HashSet<ConnectionListener>();
 	protected final Set<StreamListener> mStreamListeners = new HashSet<StreamListener>();
 	
+	/*
+	 * Copies of the listener sets that are replaced on each change, 
+	 * so that the reader threads can iterate them without locking or allocating an iterator
+	 */
+	protected volatile ConnectionListener[] mConnectionListenerArray = new ConnectionListener[0];
+	protected volatile StreamListener[] mStreamListenerArray = new StreamListener[0];
+	
 	/**
 	 * Listener interface that will provide notice about this streams connection state.
 	 * 
@@ -138,27 +236,417 @@ public class ShellStreamer {
 		public void onStreamStop(ShellStreamer shell, int resultCode);
 	}
 	
+	/**
+	 * A {@link StreamListener} that also receives the lines printed to the shell's error stream (stderr). <br /><br />
+	 * 
+	 * This is only used when {@link ShellStreamer#setSeparateErrors(boolean)} has been enabled, otherwise the errors 
+	 * are part of the regular output. Error lines are read by their own thread, but all of the error lines belonging to a stream 
+	 * are delivered before {@link StreamListener#onStreamStop(ShellStreamer, int)} is called. 
+	 * When separated, errors from streams that does not implement this interface are discarded. 
+	 */
+	public static interface ErrorStreamListener extends StreamListener {
+		/**
+		 * Called each time a new line has been printed to the shell's error stream (stderr)
+		 * 
+		 * @param shell
+		 * 		The {@link ShellStreamer} instance that handles this stream
+		 * 
+		 * @param errorLine
+		 * 		The output line from the shell's error stream (stderr)
+		 */
+		public void onStreamError(ShellStreamer shell, String errorLine);
+	}
+	
+	/**
+	 * A {@link StreamListener} that receives the raw output bytes instead of decoded lines. 
+	 * {@link StreamListener#onStreamInput(ShellStreamer, String)} is never called for these streams, 
+	 * and global listeners added with {@link ShellStreamer#addStreamListener(StreamListener)} does not receive the bytes. <br /><br />
+	 * 
+	 * The end of the output is framed using a random terminator that is created for each stream, so the output may contain anything. 
+	 * The bytes parsed to {@link #onStreamBytes(ShellStreamer, byte[], int, int)} is exactly what the command wrote, 
+	 * but note that <code>stderr</code> is merged into the same stream unless {@link ShellStreamer#setSeparateErrors(boolean)} is enabled, 
+	 * so it should otherwise be redirected if it is not wanted.
+	 */
+	public static interface ByteStreamListener extends StreamListener {
+		/**
+		 * This is called with each segment of output, as soon as it has been read from the shell. 
+		 * The buffer is reused once this method returns, so the content must be copied if it should be kept. 
+		 * 
+		 * @param shell
+		 * 		The {@link ShellStreamer} instance
+		 * 
+		 * @param buffer
+		 * 		Buffer containing the output
+		 * 
+		 * @param offset
+		 * 		Where in the buffer the output starts
+		 * 
+		 * @param length
+		 * 		The number of bytes from the offset
+		 */
+		public void onStreamBytes(ShellStreamer shell, byte[] buffer, int offset, int length);
+	}
+	
+	/**
+	 * Internal class used to keep track of streams that has been written to the shell 
+	 * while running in pipelined mode, but which has not yet received their terminator.
+	 */
+	protected static final class PipelineEntry {
+		public final StreamListener listener;
+		public final int tag;
+		public final String frame;
+		public final int errorTag;
+		public final long started;
+		public volatile String command;
+		
+		public PipelineEntry(StreamListener listener, int tag, String frame, int errorTag) {
+			this.listener = listener;
+			this.tag = tag;
+			this.frame = frame;
+			this.errorTag = errorTag;
+			this.started = System.nanoTime();
+		}
+	}
+	
+	/**
+	 * Internal class used to keep track of streams waiting in the queue. <br /><br />
+	 * 
+	 * Entries are ordered by a deadline, which is the time they were added plus {@link #PRIORITY_AGING} for each priority level below {@link #PRIORITY_INTERACTIVE}. 
+	 * A higher priority will therefore overtake everything of lower priority that is younger than the aging interval, while older entries keep their place. 
+	 */
+	protected static final class QueueEntry implements Comparable<QueueEntry> {
+		public final StreamListener listener;
+		public final int priority;
+		public final long deadline;
+		public final long sequence;
+		public final long queued;
+		
+		public QueueEntry(StreamListener listener, int priority, long sequence) {
+			this.listener = listener;
+			this.priority = priority;
+			this.deadline = System.currentTimeMillis() + ((long) priority * PRIORITY_AGING);
+			this.sequence = sequence;
+			this.queued = System.nanoTime();
+		}
+		
+		@Override
+		public int compareTo(QueueEntry entry) {
+			if (deadline != entry.deadline) {
+				return deadline < entry.deadline ? -1 : 1;
+			}
+			
+			return sequence < entry.sequence ? -1 : (sequence == entry.sequence ? 0 : 1);
+		}
+	}
+	
+	/**
+	 * Internal class used to read the shell output. It reads lines like a {@link BufferedReader}, 
+	 * but because it does not decode anything ahead of time, the raw bytes are also available for {@link ByteStreamListener} streams. <br /><br />
+	 * 
+	 * Lines are read into a reused byte buffer using {@link #nextLine()}, and they are only decoded if {@link #getLine()} is called. 
+	 * Each line is searched for a terminator while still in bytes, so that terminator lines can be handled without ever becoming a String.
+	 */
+	protected static class ShellInputStream {
+		protected final InputStream mStream;
+		protected final byte[] mMarker;
+		protected final int[] mMarkerSkip = new int[256];
+		
+		protected byte[] mBuffer = new byte[8192];
+		protected byte[] mLine = new byte[256];
+		protected int mPosition = 0;
+		protected int mLimit = 0;
+		protected int mLength = 0;
+		protected int mMarkerPosition = -1;
+		protected boolean mSkipLineFeed = false;
+		protected String mLineString;
+		
+		public ShellInputStream(InputStream stream) {
+			this(stream, null);
+		}
+		
+		public ShellInputStream(InputStream stream, String marker) {
+			mStream = stream;
+			mMarker = marker != null ? marker.getBytes() : new byte[0];
+			
+			/*
+			 * How far the search can move ahead based on the last byte of the current window. 
+			 * Bytes that are not part of the terminator allows it to skip the whole length of it.
+			 */
+			Arrays.fill(mMarkerSkip, mMarker.length);
+			
+			for (int i=0; i < mMarker.length-1; i++) {
+				mMarkerSkip[ mMarker[i] & 0xFF ] = mMarker.length - 1 - i;
+			}
+		}
+		
+		/**
+		 * Read more data into the buffer while keeping what has not yet been consumed
+		 * 
+		 * @return
+		 * 		<code>FALSE</code> on end of stream
+		 */
+		protected boolean fill() throws IOException {
+			if (mPosition > 0) {
+				System.arraycopy(mBuffer, mPosition, mBuffer, 0, mLimit - mPosition);
+				
+				mLimit -= mPosition;
+				mPosition = 0;
+			}
+			
+			if (mLimit == mBuffer.length) {
+				mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+			}
+			
+			int count = mStream.read(mBuffer, mLimit, mBuffer.length - mLimit);
+			
+			if (count > 0) {
+				mLimit += count; return true;
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Skip the line feed of a <code>\r\n</code> line break, if the last line ended with <code>\r</code>
+		 */
+		protected void skipLineFeed() throws IOException {
+			if (mSkipLineFeed) {
+				mSkipLineFeed = false;
+				
+				if ((mPosition < mLimit || fill()) && mBuffer[mPosition] == '\n') {
+					mPosition += 1;
+				}
+			}
+		}
+		
+		/**
+		 * Read the next line, terminated by <code>\n</code>, <code>\r</code> or <code>\r\n</code>, into the line buffer. 
+		 * 
+		 * @return
+		 * 		<code>FALSE</code> on end of stream
+		 */
+		public boolean nextLine() throws IOException {
+			mLength = 0;
+			mMarkerPosition = -1;
+			mLineString = null;
+			
+			skipLineFeed();
+			
+			while (true) {
+				if (mPosition >= mLimit && !fill()) {
+					if (mLength > 0) {
+						findMarker(); return true;
+					}
+					
+					return false;
+				}
+				
+				int start = mPosition;
+				int end = start;
+				byte current = 0;
+				
+				while (end < mLimit && (current = mBuffer[end]) != '\n' && current != '\r') {
+					end++;
+				}
+				
+				if (mLength + (end - start) > mLine.length) {
+					mLine = Arrays.copyOf(mLine, Math.max(mLine.length * 2, mLength + (end - start)));
+				}
+				
+				System.arraycopy(mBuffer, start, mLine, mLength, end - start);
+				mLength += end - start;
+				
+				if (end < mLimit) {
+					mPosition = end + 1;
+					mSkipLineFeed = current == '\r';
+					
+					findMarker(); return true;
+				}
+				
+				mPosition = end;
+			}
+		}
+		
+		/**
+		 * Search the current line for the terminator. Since the terminator is long and most of it's bytes 
+		 * are rare in regular output, the search normally only looks at a fraction of the bytes in the line.
+		 */
+		protected void findMarker() {
+			int last = mMarker.length - 1;
+			
+			if (last >= 0) {
+				for (int i=last; i < mLength; i += mMarkerSkip[ mLine[i] & 0xFF ]) {
+					int x = last;
+					int y = i;
+					
+					while (x >= 0 && mLine[y] == mMarker[x]) {
+						x--; y--;
+					}
+					
+					if (x < 0) {
+						mMarkerPosition = y + 1; return;
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Get the current line as a String. The line is only decoded the first time this is called.
+		 */
+		public String getLine() {
+			if (mLineString == null) {
+				mLineString = new String(mLine, 0, mLength);
+			}
+			
+			return mLineString;
+		}
+		
+		/**
+		 * Get part of the current line as a String
+		 */
+		public String getLine(int offset, int length) {
+			return new String(mLine, offset, length);
+		}
+		
+		/**
+		 * Get the position of the terminator in the current line, or <code>-1</code> if it does not contain it
+		 */
+		public int getMarkerPosition() {
+			return mMarkerPosition;
+		}
+		
+		/**
+		 * Parse a number from the current line, starting at the offset
+		 * 
+		 * @return
+		 * 		The number, or the fallback value if there is no number at the offset
+		 */
+		public int parseInt(int offset, int fallback) {
+			boolean negative = offset < mLength && mLine[offset] == '-';
+			boolean found = false;
+			int value = 0;
+			
+			for (int i=negative ? offset+1 : offset; i < mLength && mLine[i] >= '0' && mLine[i] <= '9'; i++) {
+				value = (value * 10) + (mLine[i] - '0');
+				found = true;
+			}
+			
+			return found ? (negative ? -value : value) : fallback;
+		}
+		
+		/**
+		 * Find a byte in the current line, starting at the offset
+		 */
+		public int indexOf(byte value, int offset) {
+			for (int i=offset; i < mLength; i++) {
+				if (mLine[i] == value) {
+					return i;
+				}
+			}
+			
+			return -1;
+		}
+		
+		/**
+		 * Read a line of text, terminated by <code>\n</code>, <code>\r</code> or <code>\r\n</code>. 
+		 * 
+		 * @return
+		 * 		The line without the line break, or <code>NULL</code> on end of stream
+		 */
+		public String readLine() throws IOException {
+			return nextLine() ? getLine() : null;
+		}
+		
+		/**
+		 * Find the first occurrence of a byte sequence in the unread part of the buffer
+		 */
+		protected int indexOf(byte[] sequence) {
+			for (int i=mPosition, max=mLimit-sequence.length; i <= max; i++) {
+				int x = 0;
+				
+				while (x < sequence.length && mBuffer[i+x] == sequence[x]) {
+					x++;
+				}
+				
+				if (x == sequence.length) {
+					return i;
+				}
+			}
+			
+			return -1;
+		}
+		
+		public void close() throws IOException {
+			mStream.close();
+		}
+	}
+	
+	/**
+	 * Internal stream that is queued on each new connection in order to get the process id of the shell. 
+	 * This is the id of the actual shell, which is not always the same as the <code>su</code> process that was started. 
+	 */
+	private final class ProcessIdListener implements StreamListener {
+		@Override
+		public void onStreamStart(ShellStreamer shell) {
+			shell.writeLine("echo $$");
+			shell.stopStream();
+		}
+		
+		@Override
+		public void onStreamInput(ShellStreamer shell, String outputLine) {
+			try {
+				mShellPid = Integer.parseInt(outputLine.trim());
+				
+			} catch (NumberFormatException e) {}
+		}
+		
+		@Override
+		public void onStreamStop(ShellStreamer shell, int resultCode) {}
+	}
+	
 	/**
 	 * Internal class that is used to handle the stream queue
 	 */
-	private final class QueueHandler extends Handler {
+	private final class QueueHandler implements Callback {
 		public final int MSG_DISCONNECTED = -1;
 		public final int MSG_CONNECTED = 1;
 		public final int MSG_EXECUTE = 2;
 		
-        public QueueHandler(Looper looper) {
-            super(looper);
+		private final MessageQueue mMessages;
+        
+        public QueueHandler(ShellDispatcher dispatcher, String name) {
+            mMessages = dispatcher.createQueue(name, this);
+        }
+        
+        public boolean sendEmptyMessage(int what) {
+        	return mMessages.send(what, null);
+        }
+        
+        public boolean sendMessage(int what, Object obj) {
+        	return mMessages.send(what, obj);
+        }
+        
+        public boolean sendMessageAtFrontOfQueue(int what, Object obj) {
+        	return mMessages.sendAtFront(what, obj);
+        }
+        
+        public boolean hasMessages(int what, Object obj) {
+        	return mMessages.hasMessages(what, obj);
+        }
+        
+        public void removeMessages(int what, Object obj) {
+        	mMessages.removeMessages(what, obj);
         }
         
         @Override
-        public void handleMessage(Message msg) {
-        	mIsBusy = msg.what == MSG_EXECUTE;
+        public void handleMessage(int what, Object obj) {
+        	mIsBusy = what == MSG_EXECUTE;
         	
-        	switch (msg.what) {
+        	switch (what) {
 	        	case MSG_DISCONNECTED: {
-	        		getLooper().quit();
+	        		mMessages.quit();
 	        		
-	        		for (ConnectionListener listener : mConnectionListeners) {
+	        		for (ConnectionListener listener : mConnectionListenerArray) {
 	        			listener.onShellDisconnected(ShellStreamer.this);
 	        		}
 	        		
@@ -166,7 +654,7 @@ public class ShellStreamer {
 	        	}
 	        	
 	        	case MSG_CONNECTED: {
-	        		for (ConnectionListener listener : mConnectionListeners) {
+	        		for (ConnectionListener listener : mConnectionListenerArray) {
 	        			listener.onShellConnected(ShellStreamer.this);
 	        		}
 	        		
@@ -174,67 +662,137 @@ public class ShellStreamer {
 	        	}
 	        	
 	        	case MSG_EXECUTE: {
-	        		String output = null;
-	        		StreamListener listener = (StreamListener) msg.obj;
-	        		int resultCode = 0;
+	        		/*
+	        		 * Regular streams are kept in the priority queue and the message only works as a token. 
+	        		 * Internal streams and repeats are still parsed directly with the message. 
+	        		 * A full pipeline leaves the streams in the queue, where they can still be passed by higher priorities.
+	        		 */
+	        		StreamListener listener = (StreamListener) obj;
 	        		
-	        		try {
-	        			do {
-	        				mRepeatStream = false;
+	        		if (listener == null) {
+	        			/*
+	        			 * Streams started without a listener are still real streams, 
+	        			 * so the queue entry decides whether there is anything to run, not the listener.
+	        			 */
+	        			QueueEntry entry = mPipelineActive && mPipelineLimit > 0 && mPipeline.size() >= mPipelineLimit ? null : pollStream();
+	        		
+	        			if (entry == null) {
+	        				/*
+	        				 * Writes of pipelined streams might still be waiting for this message
+	        				 */
+	        				flushWrites();
 	        				
-			        		if (listener != null) {
-			        			listener.onStreamStart(ShellStreamer.this);
-			        		}
-			        		
-			        		for (StreamListener streamListener : mStreamListeners) {
-			        			streamListener.onStreamStart(ShellStreamer.this);
-			        		}
-		        			
-		        			while (mStdOutput != null && (output = mStdOutput.readLine()) != null) {
-								if (output.contains(mCommandEnd)) {
-									try {
-										resultCode = 1;
+	        				break;
+	        			}
+	        			
+	        			listener = entry.listener;
+	        		}
+	        		
+	        		if (mPipelineActive) {
+	        			/*
+	        			 * In pipelined mode we only write the stream to the shell. 
+	        			 * The output is collected by the pipeline reader thread.
+	        			 */
+	        			int tag = ++mPipelineTag;
+	        			
+	        			mStreamFrame = createFrame(listener);
+	        			mStreamErrorTag = createErrorTag(listener);
+	
+	        			PipelineEntry entry = new PipelineEntry(listener, tag, mStreamFrame, mStreamErrorTag);
+	        			
+	        			synchronized(mPipeline) {
+	        				mPipeline.add(entry);
+	        				mPipeline.notifyAll();
+	        			}
+	
+	        			mGatherThread = Thread.currentThread();
+	        			dispatchStart(listener);
+	        			mGatherThread = null;
+	        			
+	        			entry.command = mTraceCommand;
+	        			mTraceCommand = null;
+	
+	        			mStreamFrame = null;
+	        			mStreamErrorTag = 0;
+	        			
+	        			/*
+	        			 * When more streams are waiting, their writes are added to the buffer by the next message, 
+	        			 * so that all of them reach the shell in one write. Otherwise nothing is gained by waiting.
+	        			 */
+	        			if (!hasMessages(MSG_EXECUTE, null)) {
+	        				flushWrites();
+	        			}
+	        			
+	        		} else {
+		        		int resultCode = 0;
+		        		
+		        		mCurrentListener = listener;
+		        		
+		        		try {
+		        			do {
+		        				long started = System.nanoTime();
+		        				
+		        				mRepeatStream = false;
+		        				mStreamFrame = createFrame(listener);
+		        				mStreamErrorTag = createErrorTag(listener);
+		        				
+		        				/*
+		        				 * The command and it's terminator are written to the shell in one go
+		        				 */
+		        				mGatherThread = Thread.currentThread();
+		        				dispatchStart(listener);
+		        				mGatherThread = null;
+		        				
+		        				String command = mTraceCommand;
+		        				mTraceCommand = null;
+		        				
+		        				flushWrites();
+			        			
+		        				/*
+		        				 * Reaching the end of the output before the terminator means that the shell is gone
+		        				 */
+		        				resultCode = RESULT_DISCONNECTED;
+		        				
+		        				if (mStreamFrame != null) {
+		        					Integer frameCode = mStdOutput != null ? readFrame(mStdOutput, listener, mStreamFrame) : null;
 										
-										if (output.startsWith(mCommandEnd)) {
-											resultCode = Integer.parseInt(output.substring(mCommandEnd.length()+1));
-										}
+		        					if (frameCode != null) {
+		        						resultCode = frameCode;
+		        					}
+		
+		        				} else {
+		        					ShellInputStream input = mStdOutput;
+				        			
+				        			while (input != null && input.nextLine()) {
+										if (input.getMarkerPosition() >= 0) {
+											resultCode = parseResultCode(input); break;
 										
-									} catch (Throwable e) {
-										Log.w(TAG, e.getMessage(), e);
-									}
-									
-									break;
-									
-								} else {
-					        		for (StreamListener streamListener : mStreamListeners) {
-					        			streamListener.onStreamInput(ShellStreamer.this, output);
-					        		}
-					        		
-					        		if (listener != null) {
-					        			listener.onStreamInput(ShellStreamer.this, output);
-					        		}
-								}
-		        			}
+										} else {
+											dispatchInput(listener, input);
+										}
+				        			}
+		        				}
+			        			
+			        			waitForErrors(mStreamErrorTag);
+			        			recordStream(listener, started, resultCode, command);
+			        			dispatchStop(listener, resultCode);
+			        			
+				        		if (!isConnected()) {
+				        			mRepeatStream = false;
+				        			disconnect();
+				        		}
+				        	
+		        			} while (mRepeatStream);
 		        			
-			        		for (StreamListener streamListener : mStreamListeners) {
-			        			streamListener.onStreamStop(ShellStreamer.this, resultCode);
-			        		}
-			        		
-			        		if (listener != null) {
-			        			listener.onStreamStop(ShellStreamer.this, resultCode);
-			        		}
-			        		
-			        		if (!isConnected()) {
-			        			mRepeatStream = false;
-			        			disconnect();
-			        		}
-			        	
-	        			} while (mRepeatStream);
-	        			
-	        		} catch (IOException e) {
-        				if (mConnection != null) {
-        					disconnect();
-        				}
+		        		} catch (IOException e) {
+	        				if (mConnection != null) {
+	        					disconnect();
+	        				}
+		        		}
+		        		
+		        		mCurrentListener = null;
+		        		mStreamFrame = null;
+		        		mStreamErrorTag = 0;
 	        		}
 	        	}
         	}
@@ -244,24 +802,558 @@ public class ShellStreamer {
 	}
 	
 	/**
-	 * Add a new {@link ShellStreamer.ConnectionListener} listener to this instance
-	 * 
-	 * @param listener
+	 * Internal class that reads the shell output while running in pipelined mode. 
+	 * Each line is delivered to the oldest stream in the pipeline until that stream's 
+	 * own terminator is reached. 
 	 */
-	public void addConnectionListener(ConnectionListener listener) {
-		synchronized(mConnectionListeners) {
-			mConnectionListeners.add(listener);
+	private final class PipelineReader implements Runnable {
+		@Override
+		public void run() {
+			ShellInputStream reader = mStdOutput;
+			
+			try {
+				while (reader != null) {
+					PipelineEntry entry = null;
+					
+					/*
+					 * Nothing is read until there is a stream to deliver it to. 
+					 * Otherwise the start of a byte stream could be consumed as a line of text. 
+					 * The shell process is checked once in a while, since we will not get an end of stream while waiting.
+					 */
+					synchronized(mPipeline) {
+						while ((entry = mPipeline.peek()) == null && reader == mStdOutput && isConnected()) {
+							try {
+								mPipeline.wait(1000);
+							
+							} catch (InterruptedException e) {}
+						}
+					}
+					
+					if (entry == null) {
+						break;
+					
+					} else if (entry.frame != null) {
+						Integer resultCode = readFrame(reader, entry.listener, entry.frame);
+						
+						if (resultCode == null) {
+							break;
+						}
+						
+						finishEntry(entry, resultCode);
+					
+					} else if (!reader.nextLine()) {
+						break;
+					
+					} else if (reader.getMarkerPosition() >= 0) {
+						int tag = parseTag(reader);
+						
+						/*
+						 * The shell executes everything in the order it was written, 
+						 * so the terminator should always belong to the oldest entry.
+						 */
+						while (entry != null && entry.tag != tag && tag > 0) {
+							Log.w(TAG, "PipelineReader: Dropping stream " + entry.tag + " which never received it's terminator");
+							
+							releaseEntry();
+							recordStream(entry.listener, entry.started, 1, entry.command);
+							dispatchStop(entry.listener, 1);
+							entry = mPipeline.peek();
+						}
+						
+						if (entry != null) {
+							finishEntry(entry, parseResultCode(reader));
+						}
+						
+					} else {
+						dispatchInput(entry.listener, reader);
+					}
+				}
+				
+			} catch (IOException e) {}
+			
+			/*
+			 * The connection is gone. The oldest entry was the one running in the shell 
+			 * which is handled the same way as in regular mode. The rest never got to execute.
+			 */
+			PipelineEntry entry = null;
+			
+			while ((entry = mPipeline.poll()) != null) {
+				recordStream(entry.listener, entry.started, RESULT_DISCONNECTED, entry.command);
+				dispatchStop(entry.listener, RESULT_DISCONNECTED);
+			}
+			
+			if (mConnection != null) {
+				disconnect();
+			}
+		}
+		
+		/**
+		 * Remove the oldest stream from the pipeline, and let the queue continue in case it was held back by {@link #setPipelineLimit(int)}
+		 */
+		protected void releaseEntry() {
+			mPipeline.poll();
+			
+			QueueHandler handler = mQueueHandler;
+			
+			if (handler != null && mPipelineLimit > 0) {
+				handler.sendEmptyMessage(handler.MSG_EXECUTE);
+			}
+		}
+		
+		/**
+		 * Stop the oldest stream in the pipeline once it's terminator has been reached
+		 */
+		protected void finishEntry(PipelineEntry entry, int resultCode) {
+			/*
+			 * Keep the entry in the pipeline until the listeners are done, 
+			 * otherwise isBusy() might not allow a call to repeatStream()
+			 */
+			mRepeatStream = false;
+			waitForErrors(entry.errorTag);
+			recordStream(entry.listener, entry.started, resultCode, entry.command);
+			dispatchStop(entry.listener, resultCode);
+			releaseEntry();
+			
+			if (mRepeatStream) {
+				mRepeatStream = false;
+				
+				QueueHandler handler = mQueueHandler;
+				
+				if (handler != null && isConnected()) {
+					handler.sendMessageAtFrontOfQueue(handler.MSG_EXECUTE, entry.listener);
+				}
+			}
 		}
 	}
 	
 	/**
-	 * Remove a {@link ShellStreamer.ConnectionListener} listener from this instance
+	 * Internal class that reads the shell's error stream when errors are separated from the output. 
+	 * Each line is delivered to the oldest stream that has not yet received it's error terminator, 
+	 * which is written to the error stream right before the regular terminator. 
+	 */
+	private final class ErrorReader implements Runnable {
+		@Override
+		public void run() {
+			ShellInputStream reader = mStdError;
+			
+			try {
+				while (reader != null && reader.nextLine()) {
+					PipelineEntry entry = mErrorPipeline.peek();
+					int pos = reader.getMarkerPosition();
+					
+					if (pos >= 0) {
+						int tag = reader.parseInt(pos + mErrorEnd.length() + 1, 0);
+						
+						if (pos > 0 && entry != null) {
+							/*
+							 * The last error did not end with a line break
+							 */
+							dispatchError(entry.listener, reader.getLine(0, pos));
+						}
+						
+						synchronized(mErrorPipeline) {
+							while ((entry = mErrorPipeline.peek()) != null && entry.tag <= tag) {
+								mErrorPipeline.poll();
+							}
+							
+							mErrorTagDone = tag;
+							mErrorPipeline.notifyAll();
+						}
+					
+					} else if (entry != null) {
+						dispatchError(entry.listener, reader.getLine());
+					
+					} else {
+						if(Common.DEBUG)Log.d(TAG, "ErrorReader: Discarding error output from an idle shell");
+					}
+				}
+			
+			} catch (IOException e) {}
+			
+			synchronized(mErrorPipeline) {
+				mErrorPipeline.clear();
+				mErrorPipeline.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Register a stream with the error reader and return the tag used for it's error terminator, 
+	 * or '0' if errors are not separated from the output
+	 */
+	protected int createErrorTag(StreamListener listener) {
+		if (mErrorsActive) {
+			int tag = ++mErrorTag;
+			
+			mErrorPipeline.add(new PipelineEntry(listener, tag, null, 0));
+			
+			return tag;
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Wait for the error reader to reach the error terminator of a stream, so that all of it's errors 
+	 * are delivered before the stream is stopped. Since the error terminator is written before the regular one, this is normally 
+	 * already the case. The wait is limited in case a command has redirected the shell's error stream. 
+	 */
+	protected void waitForErrors(int tag) {
+		if (tag > 0) {
+			synchronized(mErrorPipeline) {
+				long timeout = System.currentTimeMillis() + mErrorTimeout;
+				
+				while (mErrorTagDone < tag && mStdError != null && mErrorPipeline.size() > 0) {
+					long remaining = timeout - System.currentTimeMillis();
+					
+					if (remaining <= 0) {
+						Log.w(TAG, "waitForErrors: The error terminator for stream " + tag + " was never received");
+						
+						break;
+					}
+					
+					try {
+						mErrorPipeline.wait(remaining);
+					
+					} catch (InterruptedException e) {}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Create a random terminator for streams using {@link ByteStreamListener} or for all streams in framed mode, 
+	 * or <code>NULL</code> for streams that should use the regular line terminator
+	 */
+	protected String createFrame(StreamListener listener) {
+		if (mFramed || listener instanceof ByteStreamListener) {
+			return "EOF:" + Long.toHexString(mFrameRandom.nextLong()) + ":EOF";
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Deliver output to a stream until the line break in front of it's terminator is reached. 
+	 * The last bytes of each read are kept back, in case they are the beginning of the terminator. <br /><br />
+	 * 
+	 * A {@link ByteStreamListener} receives the raw bytes, while other listeners receive the lines that are split from each segment.
+	 * 
+	 * @return
+	 * 		The result code, or <code>NULL</code> on end of stream
+	 */
+	protected Integer readFrame(ShellInputStream input, StreamListener listener, String frame) throws IOException {
+		byte[] marker = ("\n" + frame + " ").getBytes();
+		FrameWriter writer = listener instanceof ByteStreamListener ? 
+				new FrameWriter((ByteStreamListener) listener) : new FrameLineWriter(listener);
+		
+		input.skipLineFeed();
+		
+		while (true) {
+			int index = input.indexOf(marker);
+			
+			if (index >= 0) {
+				writer.write(input.mBuffer, input.mPosition, index - input.mPosition);
+				writer.finish();
+				input.mPosition = index + marker.length;
+				
+				String output = input.readLine();
+				
+				try {
+					return output != null ? Integer.parseInt(output.trim()) : null;
+				
+				} catch (NumberFormatException e) {
+					return 1;
+				}
+			}
+			
+			int safe = input.mLimit - (marker.length - 1);
+			
+			if (safe > input.mPosition) {
+				writer.write(input.mBuffer, input.mPosition, safe - input.mPosition);
+				input.mPosition = safe;
+			}
+			
+			if (!input.fill()) {
+				writer.write(input.mBuffer, input.mPosition, input.mLimit - input.mPosition);
+				writer.finish();
+				input.mPosition = input.mLimit;
+				
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * Internal class used to deliver the output segments of a framed stream to a {@link ByteStreamListener}
+	 */
+	protected class FrameWriter {
+		protected final StreamListener mListener;
+		
+		public FrameWriter(StreamListener listener) {
+			mListener = listener;
+		}
+		
+		public void write(byte[] buffer, int offset, int length) {
+			mReadBytes += length;
+			
+			if (length > 0) {
+				((ByteStreamListener) mListener).onStreamBytes(ShellStreamer.this, buffer, offset, length);
+			}
+		}
+		
+		public void finish() {}
+	}
+	
+	/**
+	 * Internal class used to split the output segments of a framed stream into lines. 
+	 * Only a line that continues into the next segment is copied, the rest is decoded directly from the read buffer.
+	 */
+	protected class FrameLineWriter extends FrameWriter {
+		protected byte[] mLine = new byte[256];
+		protected int mLength = 0;
+		protected boolean mSkipLineFeed = false;
+		
+		public FrameLineWriter(StreamListener listener) {
+			super(listener);
+		}
+		
+		@Override
+		public void write(byte[] buffer, int offset, int length) {
+			int start = offset;
+			int end = offset + length;
+			
+			mReadBytes += length;
+			
+			for (int i=offset; i < end; i++) {
+				byte current = buffer[i];
+				
+				if (current == '\n' || current == '\r') {
+					if (mSkipLineFeed && current == '\n' && i == start && mLength == 0) {
+						mSkipLineFeed = false;
+						start = i + 1;
+						
+						continue;
+					}
+					
+					if (mLength > 0) {
+						append(buffer, start, i - start);
+						dispatchLine(new String(mLine, 0, mLength));
+						mLength = 0;
+					
+					} else {
+						dispatchLine(new String(buffer, start, i - start));
+					}
+					
+					mSkipLineFeed = current == '\r';
+					start = i + 1;
+				
+				} else {
+					mSkipLineFeed = false;
+				}
+			}
+			
+			append(buffer, start, end - start);
+		}
+		
+		@Override
+		public void finish() {
+			if (mLength > 0) {
+				dispatchLine(new String(mLine, 0, mLength));
+				mLength = 0;
+			}
+		}
+		
+		protected void dispatchLine(String line) {
+			mReadLines += 1;
+			dispatchInput(mListener, line);
+		}
+		
+		protected void append(byte[] buffer, int offset, int length) {
+			if (length > 0) {
+				if (mLength + length > mLine.length) {
+					mLine = Arrays.copyOf(mLine, Math.max(mLine.length * 2, mLength + length));
+				}
+				
+				System.arraycopy(buffer, offset, mLine, mLength, length);
+				mLength += length;
+			}
+		}
+	}
+	
+	/**
+	 * Internal method used to notify local and global listeners about a started stream
+	 */
+	protected void dispatchStart(StreamListener listener) {
+		if (listener != null) {
+			listener.onStreamStart(ShellStreamer.this);
+		}
+		
+		if (!(listener instanceof ProcessIdListener)) {
+			for (StreamListener streamListener : mStreamListenerArray) {
+				streamListener.onStreamStart(ShellStreamer.this);
+			}
+		}
+	}
+	
+	/**
+	 * Internal method used to deliver an output line to local and global listeners
+	 */
+	protected void dispatchInput(StreamListener listener, String output) {
+		if (!(listener instanceof ProcessIdListener)) {
+			for (StreamListener streamListener : mStreamListenerArray) {
+				streamListener.onStreamInput(ShellStreamer.this, output);
+			}
+		}
+		
+		if (listener != null) {
+			listener.onStreamInput(ShellStreamer.this, output);
+		}
+	}
+	
+	/**
+	 * Internal method used to deliver an error line to local and global listeners that implements {@link ErrorStreamListener}
+	 */
+	protected void dispatchError(StreamListener listener, String error) {
+		if (!(listener instanceof ProcessIdListener)) {
+			for (StreamListener streamListener : mStreamListenerArray) {
+				if (streamListener instanceof ErrorStreamListener) {
+					((ErrorStreamListener) streamListener).onStreamError(ShellStreamer.this, error);
+				}
+			}
+		}
+		
+		if (listener instanceof ErrorStreamListener) {
+			((ErrorStreamListener) listener).onStreamError(ShellStreamer.this, error);
+		}
+	}
+	
+	/**
+	 * Internal method used to deliver the current line of a {@link ShellInputStream}. 
+	 * The line is only decoded if there is a listener to receive it.
+	 */
+	protected void dispatchInput(StreamListener listener, ShellInputStream input) {
+		mReadBytes += input.mLength + 1;
+		mReadLines += 1;
+		
+		if (listener != null || (!(listener instanceof ProcessIdListener) && mStreamListenerArray.length > 0)) {
+			dispatchInput(listener, input.getLine());
+		}
+	}
+	
+	/**
+	 * Internal method used to notify local and global listeners about a stopped stream
+	 */
+	protected void dispatchStop(StreamListener listener, int resultCode) {
+		if (!(listener instanceof ProcessIdListener)) {
+			for (StreamListener streamListener : mStreamListenerArray) {
+				streamListener.onStreamStop(ShellStreamer.this, resultCode);
+			}
+		}
+		
+		if (listener != null) {
+			listener.onStreamStop(ShellStreamer.this, resultCode);
+		}
+	}
+	
+	/**
+	 * Internal method used to name a stream in traces after the first line that is written when it is started
+	 */
+	protected void traceCommand(String output) {
+		if (isGathering() && mTraceCommand == null && mTracer != null) {
+			int end = output.indexOf('\n');
+			
+			if (end < 0) {
+				end = output.length();
+			}
+			
+			mTraceCommand = output.substring(0, Math.min(end, 256));
+		}
+	}
+	
+	/**
+	 * Internal method used to add a finished stream to the metrics and the tracer, if enabled. 
+	 * This also resets the output counters for the next stream.
+	 */
+	protected void recordStream(StreamListener listener, long started, int resultCode, String command) {
+		ShellMetrics metrics = mMetrics;
+		ShellTracer tracer = mTracer;
+		
+		if (!(listener instanceof ProcessIdListener)) {
+			if (metrics != null) {
+				if (resultCode == RESULT_DISCONNECTED) {
+					metrics.recordDisconnect();
+			
+				} else {
+					metrics.recordExecution(System.nanoTime() - started, mReadBytes, mReadLines);
+				}
+			}
+			
+			if (tracer != null) {
+				/*
+				 * In pipelined mode the shell does not start a command before the previous one is done, 
+				 * so the span starts when the previous terminator was read, in order for the spans not to overlap
+				 */
+				tracer.span("command", command != null ? command : "stream", Math.max(started, mLastStop), 
+						"result", String.valueOf(resultCode), "bytes", String.valueOf(mReadBytes), "lines", String.valueOf(mReadLines));
+			}
+		}
+		
+		mReadBytes = 0;
+		mReadLines = 0;
+		mLastStop = System.nanoTime();
+	}
+	
+	/**
+	 * Extract the result code from a terminator line. If something was printed 
+	 * in front of the terminator without a line break, the result is considered failed.
+	 */
+	protected int parseResultCode(ShellInputStream input) {
+		if (input.getMarkerPosition() == 0) {
+			int pos = input.indexOf((byte) ' ', mCommandEnd.length());
+		
+			if (pos > 0) {
+				return input.parseInt(pos+1, 1);
+			}
+		}
+		
+		return 1;
+	}
+	
+	/**
+	 * Extract the pipeline tag from a terminator line, or <code>0</code> if it has none
+	 */
+	protected int parseTag(ShellInputStream input) {
+		int start = input.getMarkerPosition() + mCommandEnd.length();
+		
+		if (start < input.mLength && input.mLine[start] == ':') {
+			return input.parseInt(start+1, 0);
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Add a new {@link ShellStreamer.ConnectionListener} listener to this instance
+	 * 
+	 * @param listener
+	 */
+	public void addConnectionListener(ConnectionListener listener) {
+		synchronized(mConnectionListeners) {
+			mConnectionListeners.add(listener);
+			mConnectionListenerArray = mConnectionListeners.toArray(new ConnectionListener[mConnectionListeners.size()]);
+		}
+	}
+	
+	/**
+	 * Remove a {@link ShellStreamer.ConnectionListener} listener from this instance
 	 * 
 	 * @param listener
 	 */
 	public void removeConnectionListener(ConnectionListener listener) {
 		synchronized(mConnectionListeners) {
 			mConnectionListeners.remove(listener);
+			mConnectionListenerArray = mConnectionListeners.toArray(new ConnectionListener[mConnectionListeners.size()]);
 		}
 	}
 	
@@ -278,6 +1370,7 @@ public class ShellStreamer {
 	public void addStreamListener(StreamListener listener) {
 		synchronized(mStreamListeners) {
 			mStreamListeners.add(listener);
+			mStreamListenerArray = mStreamListeners.toArray(new StreamListener[mStreamListeners.size()]);
 		}
 	}
 	
@@ -289,9 +1382,131 @@ public class ShellStreamer {
 	public void removeStreamListener(StreamListener listener) {
 		synchronized(mStreamListeners) {
 			mStreamListeners.remove(listener);
+			mStreamListenerArray = mStreamListeners.toArray(new StreamListener[mStreamListeners.size()]);
 		}
 	}
 	
+	/**
+	 * Change the {@link ShellDispatcher} that provides the threads for the queue and the output readers. 
+	 * This change will take effect the next time {@link #connect(boolean)} establishes a connection.<br /><br />
+	 * 
+	 * Sharing a {@link ShellDispatcher.ConcurrentDispatcher} between many connections avoids keeping a thread for each idle connection. 
+	 * Parse NULL to use {@link ShellDispatcher#getDefault()}. 
+	 */
+	public void setDispatcher(ShellDispatcher dispatcher) {
+		mDispatcher = dispatcher != null ? dispatcher : ShellDispatcher.getDefault();
+	}
+	
+	/**
+	 * Get the {@link ShellDispatcher} used by this instance
+	 * 
+	 * @see #setDispatcher(ShellDispatcher)
+	 */
+	public ShellDispatcher getDispatcher() {
+		return mDispatcher;
+	}
+	
+	/**
+	 * Enable or disable pipelined mode. This change will take effect the next time {@link #connect(boolean)} 
+	 * establishes a connection.<br /><br />
+	 * 
+	 * In regular mode the queue writes one stream and then waits for it's terminator before the next stream 
+	 * is started. In pipelined mode each stream is tagged with it's own terminator and the queue continues to write the next 
+	 * stream right away, while a separate reader thread matches the output to the correct {@link StreamListener} as it arrives.<br /><br />
+	 * 
+	 * Note that this changes the contract for {@link StreamListener}. All writing, including the call to {@link #stopStream()}, 
+	 * must be done from within {@link StreamListener#onStreamStart(ShellStreamer)}, and the remaining callbacks will be invoked 
+	 * from the reader thread. {@link Shell.StreamCollector} already works this way. 
+	 * 
+	 * @param pipelined
+	 * 		Whether or not to use pipelined mode
+	 */
+	public void setPipelined(boolean pipelined) {
+		mPipelined = pipelined;
+	}
+	
+	/**
+	 * Check whether or not pipelined mode has been enabled
+	 * 
+	 * @see #setPipelined(boolean)
+	 */
+	public boolean isPipelined() {
+		return mPipelined;
+	}
+	
+	/**
+	 * Change the max number of streams that can be written to the shell in pipelined mode, before their output has been read. <br /><br />
+	 * 
+	 * Streams above this limit are kept in the queue, where a stream with higher priority can still be started before them. 
+	 * Once written to the shell, the order can no longer be changed. A higher limit saves round trips, a lower one makes priorities more responsive. 
+	 * Parse '0' to disable the limit. 
+	 * 
+	 * @see #startStream(StreamListener, int)
+	 */
+	public void setPipelineLimit(int limit) {
+		mPipelineLimit = limit >= 0 ? limit : 0;
+	}
+	
+	/**
+	 * Get the max number of streams that can be written to the shell in pipelined mode
+	 * 
+	 * @see #setPipelineLimit(int)
+	 */
+	public int getPipelineLimit() {
+		return mPipelineLimit;
+	}
+	
+	/**
+	 * Enable or disable framed mode. This change will take effect with the next stream that is started.<br /><br />
+	 * 
+	 * In regular mode each output line is checked for the shared terminator, which means that output containing the terminator 
+	 * ends the stream early, and that output without a trailing line break has the terminator appended to it's last line. 
+	 * In framed mode each stream gets it's own random terminator, placed on a line of it's own, and the output is searched for it 
+	 * in bulk while the lines are split from the read buffer. This also avoids checking each line, which is noticeable with large outputs. <br /><br />
+	 * 
+	 * This only uses <code>echo</code>, so it works with any shell, including busybox and toolbox.
+	 * 
+	 * @param framed
+	 * 		Whether or not to use framed mode
+	 */
+	public void setFramed(boolean framed) {
+		mFramed = framed;
+	}
+	
+	/**
+	 * Check whether or not framed mode has been enabled
+	 * 
+	 * @see #setFramed(boolean)
+	 */
+	public boolean isFramed() {
+		return mFramed;
+	}
+	
+	/**
+	 * Enable or disable separated errors. This change will take effect the next time {@link #connect(boolean)} 
+	 * establishes a connection.<br /><br />
+	 * 
+	 * By default the shell's error stream (stderr) is merged into the regular output. When separated, the error stream is 
+	 * read concurrently by it's own thread, so that neither stream can block the other, and each error line is delivered to the stream 
+	 * that produced it using {@link ErrorStreamListener#onStreamError(ShellStreamer, String)}.
+	 * 
+	 * @param separate
+	 * 		Whether or not to separate errors from the output
+	 */
+	public void setSeparateErrors(boolean separate) {
+		mSeparateErrors = separate;
+	}
+	
+	/**
+	 * Check whether or not the current connection separates errors from the output. 
+	 * Streams can use this to decide whether or not to write their own markers to the error stream. 
+	 * 
+	 * @see #setSeparateErrors(boolean)
+	 */
+	public boolean isSeparatingErrors() {
+		return mErrorsActive;
+	}
+	
 	/**
 	 * Establish a connection to a shell and start the stream queue
 	 * 
@@ -306,19 +1521,41 @@ public class ShellStreamer {
 			if (!isConnected()) {
 				try {
 					ProcessBuilder builder = new ProcessBuilder(asRoot ? "su" : "sh");
-					builder.redirectErrorStream(true);
+					builder.redirectErrorStream(!mSeparateErrors);
 
 					mConnection = builder.start();
 					mIsRoot = asRoot;
 					mStdInput = new DataOutputStream(mConnection.getOutputStream());
-					mStdOutput = new BufferedReader(new InputStreamReader(mConnection.getInputStream()));
+					mStdOutput = new ShellInputStream(mConnection.getInputStream(), mCommandEnd);
 					
-					HandlerThread thread = new HandlerThread( "ShellStream_" + (++mThreadCount) );
-					thread.start();
+					ShellDispatcher dispatcher = mDispatcher;
 
-					mQueueHandler = new QueueHandler( thread.getLooper() );
+					mQueueHandler = new QueueHandler( dispatcher, "ShellStream_" + (++mThreadCount) );
 					mQueueHandler.sendEmptyMessage(mQueueHandler.MSG_CONNECTED);
 					
+					mShellPid = 0;
+					mReadBytes = 0;
+					mReadLines = 0;
+					
+					mPipelineActive = mPipelined;
+					mErrorsActive = mSeparateErrors;
+					
+					if (mErrorsActive) {
+						mStdError = new ShellInputStream(mConnection.getErrorStream(), mErrorEnd);
+						mErrorPipeline.clear();
+						mErrorTagDone = mErrorTag;
+						mErrorReader = new ErrorReader();
+						dispatcher.startWorker( "ShellStreamErrors_" + mThreadCount, mErrorReader );
+					}
+					
+					if (mPipelineActive) {
+						mPipeline.clear();
+						mPipelineReader = new PipelineReader();
+						dispatcher.startWorker( "ShellStreamReader_" + mThreadCount, mPipelineReader );
+					}
+					
+					mQueueHandler.sendMessage(mQueueHandler.MSG_EXECUTE, new ProcessIdListener());
+					
 				} catch (IOException e) {
 					Log.w(TAG, e.getMessage(), e);
 					
@@ -331,101 +1568,500 @@ public class ShellStreamer {
 				}
 			}
 			
-			return true;
+			return true;
+		}
+	}
+	
+	/**
+	 * Destroy the shell connection and stop the stream queue. <br /><br />
+	 * 
+	 * Unless you are running a daemon or similar that occupies the stream, consider 
+	 * using a more clean {@link #writeLine(String)} by parsing <code>exit 0</code><br /><br />
+	 * 
+	 * A clean exit will also ensure that current streams get's to finish before the shell is terminated. 
+	 */
+	public void disconnect() {
+		synchronized(mConncetionLock) {
+			if (mConnection != null) {
+				mQueueHandler.removeMessages(mQueueHandler.MSG_EXECUTE, null);
+				mQueue.clear();
+				Arrays.fill(mQueueDepth, 0);
+				
+				mConnection.destroy();
+				mConnection = null;
+				
+				synchronized(mWriteLock) {
+					mWriteLength = 0;
+				}
+				
+				try {
+					mStdInput.close();
+					mStdInput = null;
+					
+					mStdOutput.close();
+					mStdOutput = null;
+					
+					if (mStdError != null) {
+						mStdError.close();
+						mStdError = null;
+					}
+				
+				} catch (IOException e) {}
+				
+				mQueueHandler.sendEmptyMessage(mQueueHandler.MSG_DISCONNECTED);
+			}
+			
+			closeKillConnection();
+		}
+		
+		/*
+		 * Wake up the pipeline reader if it is waiting for new streams. 
+		 * This is done outside the connection lock, as the reader checks the connection while holding the pipeline.
+		 */
+		synchronized(mPipeline) {
+			mPipeline.notifyAll();
+		}
+		
+		synchronized(mErrorPipeline) {
+			mErrorPipeline.notifyAll();
+		}
+	}
+	
+	/**
+	 * Check if a connection to the shell has been established
+	 * 
+	 * @return
+	 * 		<code>TRUE</code> if the connection is established
+	 */
+	public boolean isConnected() {
+		synchronized(mConncetionLock) {
+			if (mConnection != null) {
+				try {
+					mConnection.exitValue();
+					
+				} catch (IllegalThreadStateException e) {
+					return true;
+				}
+			}
+			
+			return false;
+		}
+	}
+	
+	/**
+	 * Check if the queue is in the process of running shell streams, in which case the shell is currently busy.
+	 * 
+	 * @return
+	 * 		<code>TRUE</code> if the queue is processing streams
+	 */
+	public boolean isBusy() {
+		synchronized(mConncetionLock) {
+			return mIsBusy || !mPipeline.isEmpty() || !mQueue.isEmpty() || mQueueHandler.hasMessages(mQueueHandler.MSG_EXECUTE, null);
+		}
+	}
+	
+	/**
+	 * Get the number of streams waiting in the queue with a specific priority
+	 * 
+	 * @param priority
+	 * 		One of {@link #PRIORITY_INTERACTIVE}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_BULK}
+	 */
+	public int getQueueDepth(int priority) {
+		synchronized(mConncetionLock) {
+			return priority >= 0 && priority < mQueueDepth.length ? mQueueDepth[priority] : 0;
+		}
+	}
+	
+	/**
+	 * Get the number of streams waiting in the queue
+	 */
+	public int getQueueDepth() {
+		synchronized(mConncetionLock) {
+			return mQueue.size();
+		}
+	}
+	
+	/**
+	 * Change where the latency and throughput of each stream is recorded. 
+	 * Several instances can share the same {@link ShellMetrics}, and parsing <code>NULL</code> disables recording.
+	 */
+	public void setMetrics(ShellMetrics metrics) {
+		mMetrics = metrics;
+	}
+	
+	/**
+	 * Get the {@link ShellMetrics} that this instance records to, or <code>NULL</code> if recording is disabled
+	 */
+	public ShellMetrics getMetrics() {
+		return mMetrics;
+	}
+	
+	/**
+	 * Record a span for each stream in a {@link ShellTracer}, named after the first line written to it. 
+	 * Parsing <code>NULL</code> disables tracing, which is the default.
+	 */
+	public void setTracer(ShellTracer tracer) {
+		mTracer = tracer;
+	}
+	
+	/**
+	 * Get the {@link ShellTracer} that this instance records to, or <code>NULL</code> if tracing is disabled
+	 */
+	public ShellTracer getTracer() {
+		return mTracer;
+	}
+	
+	/**
+	 * Add a new Stream Request to the queue. It is important to note that this will send a stream request 
+	 * to a stream queue handler asynchronized. This means that the stream cannot be ensured to have been started 
+	 * when this method returns. Alsways use the {@link StreamListener} to handle the actual stream work.<br /><br />
+	 * 
+	 * A stream is not equel to a shell connection. You must in any case first establish a connection using {@link #connect(boolean)}. 
+	 * A stream will just start a new listener on <code>stdout</code> and allow writing to be made on <code>stdin</code>. Each new line from 
+	 * <code>stdout</code> will be sent to the {@link StreamListener} that was parsed to this specific stream. <br /><br />
+	 * 
+	 * A stream will continue to be active until a call is made to {@link #stopStream()}. Stopping a stream will not disconnect from the shell. 
+	 * It will just stop monitoring <code>stdout</code> for this {@link StreamListener} and allow others in the queue to start theirs. Note however 
+	 * that a stream is stopped by writing a specific pattern to the shell. This means that if the shell currently has a process running in it (daemon or similar), 
+	 * the {@link #stopStream()} call will not work as <code>stdout</code> will be busy and will not receive the pattern unless/until the process stops. It is up to the user of the stream 
+	 * to ensure that the stream can be stopped. For example if you use <code>cat</code> to add content to a file, you can use <code>"cat << 'EOF' > file"</code> 
+	 * to do so and end it using <code>"EOF"</code> at the end, before calling {@link #stopStream()}. If the <code>ShellStreamer</code> is not meant to be reused for other work, 
+	 * you can always just call {@link #disconnect()} to destroy the connection. 
+	 * 
+	 * @param listener
+	 * 		A {@link StreamListener} that should receive status and content of the stream
+	 * 
+	 * @return
+	 * 		<code>TRUE</code> if the request was sent to the queue
+	 */
+	public boolean startStream(StreamListener listener) {
+		return startStream(listener, PRIORITY_NORMAL);
+	}
+	
+	/**
+	 * Add a new Stream Request to the queue with a specific priority. <br /><br />
+	 * 
+	 * Streams with a higher priority are started before streams of lower priority that are already waiting, 
+	 * unless those have been waiting for longer than {@link #PRIORITY_AGING}. Streams with equal priority are started in the order they were added. 
+	 * Note that priority only affects the order of the queue, it will not interrupt a stream that has already been started. 
+	 * 
+	 * @see #startStream(StreamListener)
+	 * 
+	 * @param listener
+	 * 		A {@link StreamListener} that should receive status and content of the stream
+	 * 
+	 * @param priority
+	 * 		One of {@link #PRIORITY_INTERACTIVE}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_BULK}
+	 * 
+	 * @return
+	 * 		<code>TRUE</code> if the request was sent to the queue
+	 */
+	public boolean startStream(StreamListener listener, int priority) {
+		synchronized(mConncetionLock) {
+			if (isConnected()) {
+				if (priority < PRIORITY_INTERACTIVE) {
+					priority = PRIORITY_INTERACTIVE;
+				
+				} else if (priority > PRIORITY_BULK) {
+					priority = PRIORITY_BULK;
+				}
+				
+				mQueue.add(new QueueEntry(listener, priority, mQueueSequence++));
+				mQueueDepth[priority] += 1;
+				mQueueHandler.sendEmptyMessage(mQueueHandler.MSG_EXECUTE); return true;
+			}
+			
+			return false;
 		}
 	}
 	
 	/**
-	 * Destroy the shell connection and stop the stream queue. <br /><br />
-	 * 
-	 * Unless you are running a daemon or similar that occupies the stream, consider 
-	 * using a more clean {@link #writeLine(String)} by parsing <code>exit 0</code><br /><br />
-	 * 
-	 * A clean exit will also ensure that current streams get's to finish before the shell is terminated. 
+	 * Take the next stream from the priority queue
 	 */
-	public void disconnect() {
+	protected QueueEntry pollStream() {
 		synchronized(mConncetionLock) {
-			if (mConnection != null) {
-				mQueueHandler.removeMessages(mQueueHandler.MSG_EXECUTE);
+			QueueEntry entry = mQueue.poll();
+			
+			if (entry != null) {
+				mQueueDepth[entry.priority] -= 1;
 				
-				mConnection.destroy();
-				mConnection = null;
+				ShellMetrics metrics = mMetrics;
 				
-				try {
-					mStdInput.close();
-					mStdInput = null;
-					
-					mStdOutput.close();
-					mStdOutput = null;
-					
-				} catch (IOException e) {}
+				if (metrics != null) {
+					metrics.recordQueueWait(System.nanoTime() - entry.queued);
+				}
 				
-				mQueueHandler.sendEmptyMessage(mQueueHandler.MSG_DISCONNECTED);
+				return entry;
 			}
+			
+			return null;
 		}
 	}
 	
 	/**
-	 * Check if a connection to the shell has been established
+	 * Remove a stream from the queue, if it has not yet been started. 
+	 * A removed stream will not receive any calls to it's {@link StreamListener}. 
+	 * 
+	 * @param listener
+	 * 		The {@link StreamListener} that was parsed to {@link #startStream(StreamListener)}
 	 * 
 	 * @return
-	 * 		<code>TRUE</code> if the connection is established
+	 * 		<code>TRUE</code> if the stream was still waiting in the queue
 	 */
-	public boolean isConnected() {
+	public boolean removeStream(StreamListener listener) {
 		synchronized(mConncetionLock) {
-			if (mConnection != null) {
-				try {
-					mConnection.exitValue();
+			for (QueueEntry entry : mQueue) {
+				if (entry.listener == listener) {
+					mQueue.remove(entry);
+					mQueueDepth[entry.priority] -= 1;
 					
-				} catch (IllegalThreadStateException e) {
 					return true;
 				}
 			}
 			
-			return false;
+			if (mQueueHandler == null || listener == null || !mQueueHandler.hasMessages(mQueueHandler.MSG_EXECUTE, listener)) {
+				return false;
+			}
+			
+			mQueueHandler.removeMessages(mQueueHandler.MSG_EXECUTE, listener);
+		}
+		
+		/*
+		 * Writes of pipelined streams might have been waiting for the removed message
+		 */
+		if (!mQueueHandler.hasMessages(mQueueHandler.MSG_EXECUTE, null)) {
+			flushWrites();
 		}
+		
+		return true;
 	}
 	
 	/**
-	 * Check if the queue is in the process of running shell streams, in which case the shell is currently busy.
+	 * Cancel a single stream without disconnecting from the shell. <br /><br />
+	 * 
+	 * If the stream is still waiting in the queue, it is simply removed as with {@link #removeStream(StreamListener)}. 
+	 * If it is the stream currently being executed, all child processes of the shell is killed from a separate connection. 
+	 * This will make the shell continue with the stream terminator, so the stream ends with the result code of the killed process 
+	 * and the connection stays available for the rest of the queue. <br /><br />
+	 * 
+	 * The kill is done in the background, so this does not block. Wait for the stream to stop in order to know that it worked, 
+	 * and use {@link #disconnect()} if it does not stop in time. <br /><br />
+	 * 
+	 * Note that this cannot interrupt commands that is handled by the shell itself, like a <code>while</code> loop using only builtins. 
+	 * In that case {@link #disconnect()} is the only option. 
+	 * 
+	 * @param listener
+	 * 		The {@link StreamListener} that was parsed to {@link #startStream(StreamListener)}
 	 * 
 	 * @return
-	 * 		<code>TRUE</code> if the queue is processing streams
+	 * 		<code>TRUE</code> if the stream was removed or a kill of it's processes was requested
 	 */
-	public boolean isBusy() {
-		return mIsBusy || mQueueHandler.hasMessages(mQueueHandler.MSG_EXECUTE);
+	public boolean cancelStream(StreamListener listener) {
+		if (removeStream(listener)) {
+			if(Common.DEBUG)Log.d(TAG, "cancelStream: The stream was removed from the queue");
+			
+			return true;
+		}
+		
+		if (listener != null && listener == getCurrentStream()) {
+			if(Common.DEBUG)Log.d(TAG, "cancelStream: Killing the child processes of the shell");
+			
+			return killChildProcesses(listener);
+		}
+		
+		return false;
 	}
 	
 	/**
-	 * Add a new Stream Request to the queue. It is important to note that this will send a stream request 
-	 * to a stream queue handler asynchronized. This means that the stream cannot be ensured to have been started 
-	 * when this method returns. Alsways use the {@link StreamListener} to handle the actual stream work.<br /><br />
+	 * Get the listener of the stream that currently occupies the shell, 
+	 * which in pipelined mode is the oldest stream still waiting for it's output
+	 */
+	protected StreamListener getCurrentStream() {
+		if (mPipelineActive) {
+			PipelineEntry entry = mPipeline.peek();
+			
+			return entry != null ? entry.listener : null;
+		}
+		
+		return mCurrentListener;
+	}
+	
+	/**
+	 * Get the process id of the shell, or '0' if it is not yet known
+	 */
+	public int getShellPid() {
+		return mShellPid;
+	}
+	
+	/**
+	 * Kill all of the processes started by the shell. A separate connection is used for this, 
+	 * since the shell itself is busy waiting for them to finish. <br /><br />
 	 * 
-	 * A stream is not equel to a shell connection. You must in any case first establish a connection using {@link #connect(boolean)}. 
-	 * A stream will just start a new listener on <code>stdout</code> and allow writing to be made on <code>stdin</code>. Each new line from 
-	 * <code>stdout</code> will be sent to the {@link StreamListener} that was parsed to this specific stream. <br /><br />
+	 * The kill is done on a worker from the {@link ShellDispatcher}, so this returns right away. 
+	 * Callers that need to know when it is done should wait for the stream to stop, with a timeout of their own. 
+	 * Requests made while a kill is running are handled by running it once more afterwards. <br /><br />
 	 * 
-	 * A stream will continue to be active until a call is made to {@link #stopStream()}. Stopping a stream will not disconnect from the shell. 
-	 * It will just stop monitoring <code>stdout</code> for this {@link StreamListener} and allow others in the queue to start theirs. Note however 
-	 * that a stream is stopped by writing a specific pattern to the shell. This means that if the shell currently has a process running in it (daemon or similar), 
-	 * the {@link #stopStream()} call will not work as <code>stdout</code> will be busy and will not receive the pattern unless/until the process stops. It is up to the user of the stream 
-	 * to ensure that the stream can be stopped. For example if you use <code>cat</code> to add content to a file, you can use <code>"cat << 'EOF' > file"</code> 
-	 * to do so and end it using <code>"EOF"</code> at the end, before calling {@link #stopStream()}. If the <code>ShellStreamer</code> is not meant to be reused for other work, 
-	 * you can always just call {@link #disconnect()} to destroy the connection. 
+	 * If there was nothing to kill, the stream is busy inside the shell itself, like a builtin loop. 
+	 * The shell is then disconnected, as long as the stream is still the one occupying it.
 	 * 
 	 * @param listener
-	 * 		A {@link StreamListener} that should receive status and content of the stream
+	 * 		The stream that should be stopped
 	 * 
 	 * @return
-	 * 		<code>TRUE</code> if the request was sent to the queue
+	 * 		<code>TRUE</code> if the kill was requested
 	 */
-	public boolean startStream(StreamListener listener) {
-		synchronized(mConncetionLock) {
-			if (isConnected()) {
-				mQueueHandler.obtainMessage(mQueueHandler.MSG_EXECUTE, listener).sendToTarget(); return true;
+	protected boolean killChildProcesses(StreamListener listener) {
+		if (mShellPid <= 0 || !isConnected()) {
+			return false;
+		}
+		
+		synchronized(mKillLock) {
+			mKillTarget = listener;
+			
+			if (mKillRunning) {
+				mKillPending = true; return true;
 			}
 			
-			return false;
+			mKillRunning = true;
+		}
+				
+		mDispatcher.startWorker("ShellStreamKill_" + mThreadCount, new Runnable() {
+			@Override
+			public void run() {
+				boolean again = true;
+				
+				while (again) {
+					StreamListener target = null;
+					
+					synchronized(mKillLock) {
+						target = mKillTarget;
+					}
+					
+					if (!killChildren(mShellPid) && target != null && target == getCurrentStream()) {
+						if(Common.DEBUG)Log.d(TAG, "killChildProcesses: There was nothing to kill, disconnecting the shell");
+						
+						disconnect();
+					}
+				
+					synchronized(mKillLock) {
+						again = mKillPending;
+						mKillPending = false;
+						mKillRunning = again;
+						
+						if (!again) {
+							mKillTarget = null;
+						}
+					}
+				}
+			}
+		});
+				
+		return true;
+	}
+				
+	/**
+	 * Kill all child processes of a shell using the side connection. 
+	 * The side connection is started on first use and kept open, so that <code>su</code> 
+	 * does not have to be asked again each time a stream is cancelled. It is closed by {@link #disconnect()}.
+	 */
+	protected boolean killChildren(int pid) {
+		try {
+			Process process = mKillProcess;
+			
+			if (process == null) {
+				synchronized(mConncetionLock) {
+					if (!isConnected()) {
+						return false;
+					}
+					
+					ProcessBuilder builder = new ProcessBuilder(mIsRoot ? "su" : "sh");
+					builder.redirectErrorStream(true);
+					
+					mKillProcess = process = builder.start();
+					mKillInput = new DataOutputStream(process.getOutputStream());
+					mKillOutput = new BufferedReader(new InputStreamReader(process.getInputStream()));
+				}
+			}
+			
+			DataOutputStream input = mKillInput;
+			BufferedReader output = mKillOutput;
+			Map<Integer, List<Integer>> children = new HashMap<Integer, List<Integer>>();
+			String line = null;
+			
+			/*
+			 * Not all toolbox versions has a usable 'ps', so the parent ids are read directly from /proc
+			 */
+			input.write( ("for RFW_P in /proc/[0-9]*; do read -r RFW_L < $RFW_P/stat && echo \"$RFW_L\"; done 2> /dev/null; echo " + mCommandEnd + "\n").getBytes() );
+			input.flush();
+			
+			while ((line = output.readLine()) != null && !line.contains(mCommandEnd)) {
+				int pos = line.lastIndexOf(")");
+				
+				if (pos > 0) {
+					try {
+						String[] parts = line.substring(pos+1).trim().split(" ");
+						Integer childPid = Integer.parseInt(line.substring(0, line.indexOf(" ")));
+						Integer parentPid = Integer.parseInt(parts[1]);
+						
+						if (!children.containsKey(parentPid)) {
+							children.put(parentPid, new ArrayList<Integer>());
+						}
+						
+						children.get(parentPid).add(childPid);
+					
+					} catch (Throwable e) {}
+				}
+			}
+			
+			if (line == null) {
+				throw new IOException("The side connection was closed");
+			}
+			
+			List<Integer> pids = new ArrayList<Integer>();
+			StringBuilder command = new StringBuilder();
+			
+			if (children.containsKey(pid)) {
+				pids.addAll(children.get(pid));
+			}
+			
+			for (int i=0; i < pids.size(); i++) {
+				if (children.containsKey(pids.get(i))) {
+					pids.addAll(children.get(pids.get(i)));
+				}
+				
+				command.append(" ").append(pids.get(i));
+			}
+					
+			if (pids.size() > 0) {
+				input.write( ("kill -9" + command + "\n").getBytes() );
+				input.flush();
+			}
+				
+			return pids.size() > 0;
+				
+		} catch (Throwable e) {
+			if(Common.DEBUG)Log.d(TAG, "killChildren: " + e.getMessage());
+				
+			closeKillConnection();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Close the side connection used by {@link #killChildren(int)}
+	 */
+	protected void closeKillConnection() {
+		synchronized(mConncetionLock) {
+			Process process = mKillProcess;
+			
+			if (process != null) {
+				process.destroy();
+				
+				mKillProcess = null;
+				mKillInput = null;
+				mKillOutput = null;
+			}
 		}
 	}
 	
@@ -436,7 +2072,29 @@ public class ShellStreamer {
 	 * Otherwise you will just target a random stream, or none if one is still in the process of being started. 
 	 */
 	public boolean stopStream() {
-		return writeLine("echo " + mCommandEnd + " $?");
+		String frame = mStreamFrame;
+		String status = "RFW_R=$?; ";
+		int errorTag = mStreamErrorTag;
+		
+		if (errorTag > 0) {
+			/*
+			 * The error terminator is written first, so that the errors are complete once the regular terminator is read
+			 */
+			status += "echo " + mErrorEnd + ":" + errorTag + " >&2; ";
+		}
+		
+		if (frame != null) {
+			/*
+			 * The extra line break makes sure that the terminator is found even if the output does not end with one. 
+			 * It is not part of the output that is delivered.
+			 */
+			return writeLine(status + "echo; echo " + frame + " $RFW_R");
+		
+		} else if (mPipelineActive) {
+			return writeLine(status + "echo " + mCommandEnd + ":" + mPipelineTag + " $RFW_R");
+		}
+		
+		return writeLine(status + "echo " + mCommandEnd + " $RFW_R");
 	}
 	
 	/**
@@ -472,7 +2130,18 @@ public class ShellStreamer {
 	 * 		<code>TRUE</code> if there is a stream to target
 	 */
 	public boolean writeLine(String line) {
-		return write( (line + "\n").getBytes() );
+		if (isBusy() && mStdInput != null) {
+			synchronized(mWriteLock) {
+				traceCommand(line);
+				
+				append(line);
+				append((byte) '\n');
+			}
+			
+			return commitWrites();
+		}
+		
+		return false;
 	}
 	
 	/**
@@ -485,7 +2154,7 @@ public class ShellStreamer {
 	 * 		<code>TRUE</code> if there is a stream to target
 	 */
 	public boolean write(String out) {
-		return write(out.getBytes());
+		return write(new String[]{out});
 	}
 	
 	/**
@@ -498,26 +2167,21 @@ public class ShellStreamer {
 	 * 		<code>TRUE</code> if there is a stream to target
 	 */
 	public boolean write(String[] out) {
-		synchronized(mConncetionLock) {
-			if (isBusy()) {
-				try {
-					for (String str : out) {
-						mStdInput.write(str.getBytes());
-					}
-					
-					if (mStdInput != null) {
-						mStdInput.flush();
-					}
-					
-					return true;
-					
-				} catch (IOException e) {
-					Log.w(TAG, e.getMessage(), e);
+		if (isBusy() && mStdInput != null) {
+			synchronized(mWriteLock) {
+				if (out.length > 0) {
+					traceCommand(out[0]);
+				}
+				
+				for (String str : out) {
+					append(str);
 				}
 			}
 			
-			return false;
+			return commitWrites();
 		}
+		
+		return false;
 	}
 	
 	/**
@@ -530,7 +2194,15 @@ public class ShellStreamer {
 	 * 		<code>TRUE</code> if there is a stream to target
 	 */
 	public boolean write(byte out) {
-		return write( new byte[]{out} );
+		if (isBusy() && mStdInput != null) {
+			synchronized(mWriteLock) {
+				append(out);
+			}
+			
+			return commitWrites();
+		}
+		
+		return false;
 	}
 	
 	/**
@@ -548,23 +2220,140 @@ public class ShellStreamer {
 	 * 		<code>TRUE</code> if there is a stream to target
 	 */
 	public boolean write(byte[] out) {
-		synchronized(mConncetionLock) {
-			if (isBusy()) {
+		if (isBusy() && mStdInput != null) {
+			synchronized(mWriteLock) {
+				append(out, 0, out.length);
+			}
+			
+			return commitWrites();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Add a String to the write buffer. Plain ASCII, which is what most commands consists of, 
+	 * is copied directly without creating a new byte array.
+	 */
+	protected void append(String str) {
+		int length = str.length();
+		
+		ensureCapacity(length);
+		
+		for (int i=0; i < length; i++) {
+			char current = str.charAt(i);
+			
+			if (current >= 0x80) {
+				byte[] bytes = str.substring(i).getBytes();
+				
+				append(bytes, 0, bytes.length); return;
+			}
+			
+			mWriteBuffer[mWriteLength++] = (byte) current;
+		}
+	}
+	
+	protected void append(byte value) {
+		ensureCapacity(1);
+		
+		mWriteBuffer[mWriteLength++] = value;
+	}
+	
+	protected void append(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+		
+		System.arraycopy(bytes, offset, mWriteBuffer, mWriteLength, length);
+		mWriteLength += length;
+	}
+	
+	protected void ensureCapacity(int length) {
+		if (mWriteLength + length > mWriteBuffer.length) {
+			mWriteBuffer = Arrays.copyOf(mWriteBuffer, Math.max(mWriteBuffer.length * 2, mWriteLength + length));
+		}
+	}
+	
+	/**
+	 * Check whether the current thread is the queue, while it is gathering the writes of a stream it is starting. 
+	 * Writes from any other thread are never held back, even if they are made while a stream is being started.
+	 */
+	protected boolean isGathering() {
+		return mGatherThread == Thread.currentThread();
+	}
+	
+	/**
+	 * Write the buffer to the shell, unless the queue is in the middle of gathering the writes of a stream. 
+	 * Gathering is stopped early if the buffer grows large. 
+	 * 
+	 * @return
+	 * 		<code>FALSE</code> if the buffer could not be written
+	 */
+	protected boolean commitWrites() {
+		synchronized(mWriteLock) {
+			if (isGathering() && mWriteLength < mWriteLimit) {
+				return true;
+			}
+		}
+		
+		return flushWrites();
+	}
+	
+	/**
+	 * Write the content of the buffer to the shell using a single write and flush. <br /><br />
+	 * 
+	 * The write itself is done without holding any lock, as it blocks once the shell stops reading it's input. 
+	 * Only one thread writes at a time. Anything added to the buffer while it is busy is written by that same thread 
+	 * once it is done, so that the order is kept without others having to wait for it.
+	 */
+	protected boolean flushWrites() {
+		boolean status = true;
+		
+		synchronized(mWriteLock) {
+			if (mFlushing) {
+				return true;
+			}
+			
+			mFlushing = true;
+		}
+		
+		while (true) {
+			DataOutputStream input = mStdInput;
+			byte[] buffer = null;
+			int length = 0;
+			
+			synchronized(mWriteLock) {
+				if (mWriteLength == 0) {
+					mFlushing = false; return status;
+				}
+				
+				buffer = mWriteBuffer;
+				length = mWriteLength;
+				
+				mWriteBuffer = mSpareBuffer != null ? mSpareBuffer : new byte[1024];
+				mSpareBuffer = null;
+				mWriteLength = 0;
+			}
+			
+			if (input != null) {
 				try {
-					mStdInput.write(out);
-
-					if (mStdInput != null) {
-						mStdInput.flush();
-					}
-					
-					return true;
-					
+					input.write(buffer, 0, length);
+					input.flush();
+				
 				} catch (IOException e) {
-					Log.w(TAG, e.getMessage(), e);
+					Log.w(TAG, e.getMessage(), e); status = false;
 				}
+			
+			} else {
+				status = false;
 			}
 			
-			return false;
+			/*
+			 * Do not keep a large buffer around after writing a lot of data
+			 */
+			if (buffer.length <= mWriteLimit * 4) {
+				synchronized(mWriteLock) {
+					mSpareBuffer = buffer;
+				}
+			}
 		}
 	}
 }
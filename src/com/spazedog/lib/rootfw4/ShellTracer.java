@@ -0,0 +1,330 @@
+/*
+ * This file is part of the RootFW Project: https://github.com/spazedog/rootfw
+ *  
+ * Copyright (c) 2015 Daniel Bergløv
+ * 
+ * RootFW is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * RootFW is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with RootFW. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.rootfw4;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import android.os.Process;
+
+/**
+ * Records timestamped spans of the work done by a {@link Shell}, which can be exported in the Chrome trace event format 
+ * and opened in <code>chrome://tracing</code> or Perfetto. <br /><br />
+ * 
+ * Spans are recorded for each command written to the shell, each execution using {@link Shell.Attempts} or multiple commands, 
+ * each reconnect and the high-level operations in {@link com.spazedog.lib.rootfw4.utils.File}, like <code>copy</code> and <code>remove</code>. 
+ * Nested operations, like a directory being copied one file at a time, are shown as a stack on the thread that called them, 
+ * while the commands are shown on the thread reading the shell output. <br /><br />
+ * 
+ * Events are kept in a fixed size ring buffer without locking, so the oldest events are overwritten once it is full. 
+ * Tracing is disabled by default, and is enabled by parsing an instance to {@link Shell#setTracer(ShellTracer)}.
+ */
+public class ShellTracer {
+	public static final String TAG = Common.TAG + ".ShellTracer";
+	
+	protected final AtomicReferenceArray<Event> mEvents;
+	protected final AtomicLong mNextEvent = new AtomicLong();
+	protected final int mMask;
+	protected final long mOrigin = System.nanoTime();
+	
+	/**
+	 * A single recorded event. Times are in microseconds from the creation of the tracer.
+	 */
+	public static class Event {
+		public final long sequence;
+		public final String category;
+		public final String name;
+		public final char phase;
+		public final long start;
+		public final long duration;
+		public final long threadId;
+		public final String threadName;
+		public final String[] args;
+		
+		public Event(long sequence, String category, String name, char phase, long start, long duration, Thread thread, String[] args) {
+			this.sequence = sequence;
+			this.category = category;
+			this.name = name;
+			this.phase = phase;
+			this.start = start;
+			this.duration = duration;
+			this.threadId = thread.getId();
+			this.threadName = thread.getName();
+			this.args = args;
+		}
+	}
+	
+	/**
+	 * A span that has been started using {@link ShellTracer#begin(String, String, String...)}, 
+	 * which is recorded once {@link #end(String...)} is called.
+	 */
+	public class Span {
+		protected final String mCategory;
+		protected final String mName;
+		protected final String[] mArgs;
+		protected final long mStart = System.nanoTime();
+		
+		protected Span(String category, String name, String[] args) {
+			mCategory = category;
+			mName = name;
+			mArgs = args;
+		}
+		
+		/**
+		 * Record this span on the current thread
+		 * 
+		 * @param args
+		 *     Additional arguments in key/value pairs, which are added to those parsed when the span was started
+		 */
+		public void end(String... args) {
+			String[] merged = mArgs;
+			
+			if (args.length > 0) {
+				merged = new String[mArgs.length + args.length];
+				
+				System.arraycopy(mArgs, 0, merged, 0, mArgs.length);
+				System.arraycopy(args, 0, merged, mArgs.length, args.length);
+			}
+			
+			span(mCategory, mName, mStart, merged);
+		}
+	}
+	
+	/**
+	 * Create a tracer that keeps the last 8192 events
+	 */
+	public ShellTracer() {
+		this(8192);
+	}
+	
+	/**
+	 * Create a tracer with a specific size
+	 * 
+	 * @param capacity
+	 *     The number of events to keep. This is rounded up to a power of two.
+	 */
+	public ShellTracer(Integer capacity) {
+		int size = 1;
+		
+		while (size < capacity && size < (1 << 30)) {
+			size <<= 1;
+		}
+		
+		mEvents = new AtomicReferenceArray<Event>(size);
+		mMask = size - 1;
+	}
+	
+	/**
+	 * Start a new span, which is recorded once it is ended
+	 * 
+	 * @param category
+	 *     The category of the span, like <code>file</code>
+	 *     
+	 * @param name
+	 *     The name of the span
+	 *     
+	 * @param args
+	 *     Arguments in key/value pairs, like <code>"path", "/system"</code>
+	 */
+	public Span begin(String category, String name, String... args) {
+		return new Span(category, name, args);
+	}
+	
+	/**
+	 * Record a span on the current thread that ends now
+	 * 
+	 * @param start
+	 *     The start of the span from {@link System#nanoTime()}
+	 */
+	public void span(String category, String name, long start, String... args) {
+		long end = System.nanoTime();
+		
+		add(category, name, 'X', start, end - start, args);
+	}
+	
+	/**
+	 * Record an event without a duration on the current thread
+	 */
+	public void instant(String category, String name, String... args) {
+		add(category, name, 'i', System.nanoTime(), 0, args);
+	}
+	
+	/**
+	 * Internal method used to claim the next slot in the ring buffer
+	 */
+	protected void add(String category, String name, char phase, long start, long duration, String[] args) {
+		long sequence = mNextEvent.getAndIncrement();
+		
+		mEvents.set((int) (sequence & mMask), new Event(sequence, category, name, phase, (start - mOrigin) / 1000, duration / 1000, Thread.currentThread(), args));
+	}
+	
+	/**
+	 * Get the events currently in the buffer, oldest first. 
+	 * Events that are overwritten while this is running are left out.
+	 */
+	public List<Event> getEvents() {
+		long last = mNextEvent.get();
+		long first = Math.max(0, last - mEvents.length());
+		List<Event> events = new ArrayList<Event>((int) (last - first));
+		
+		for (long i=first; i < last; i++) {
+			Event event = mEvents.get((int) (i & mMask));
+			
+			/*
+			 * The slot might not be written yet, or it might already contain a newer event
+			 */
+			if (event != null && event.sequence == i) {
+				events.add(event);
+			}
+		}
+		
+		return events;
+	}
+	
+	/**
+	 * Remove all events from the buffer
+	 */
+	public void clear() {
+		for (int i=0; i < mEvents.length(); i++) {
+			mEvents.set(i, null);
+		}
+	}
+	
+	/**
+	 * Write the events in the Chrome trace event format
+	 */
+	public void writeJson(Writer writer) throws IOException {
+		List<Event> events = getEvents();
+		Map<Long, String> threads = new HashMap<Long, String>();
+		int pid = Process.myPid();
+		boolean first = true;
+		
+		writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+		
+		for (Event event : events) {
+			threads.put(event.threadId, event.threadName);
+			
+			writer.write(first ? "\n" : ",\n");
+			writer.write("{\"name\":");
+			writeString(writer, event.name);
+			writer.write(",\"cat\":");
+			writeString(writer, event.category);
+			writer.write(",\"ph\":\"" + event.phase + "\",\"ts\":" + event.start);
+			
+			if (event.phase == 'X') {
+				writer.write(",\"dur\":" + event.duration);
+			
+			} else {
+				writer.write(",\"s\":\"t\"");
+			}
+			
+			writer.write(",\"pid\":" + pid + ",\"tid\":" + event.threadId);
+			
+			if (event.args != null && event.args.length > 1) {
+				writer.write(",\"args\":{");
+				
+				for (int i=0; i+1 < event.args.length; i += 2) {
+					if (i > 0) {
+						writer.write(",");
+					}
+					
+					writeString(writer, event.args[i]);
+					writer.write(":");
+					writeString(writer, event.args[i+1]);
+				}
+				
+				writer.write("}");
+			}
+			
+			writer.write("}");
+			first = false;
+		}
+		
+		/*
+		 * Name the threads, so that the shell reader threads can be told apart from the callers
+		 */
+		for (Map.Entry<Long, String> thread : threads.entrySet()) {
+			writer.write(first ? "\n" : ",\n");
+			writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + pid + ",\"tid\":" + thread.getKey() + ",\"args\":{\"name\":");
+			writeString(writer, thread.getValue());
+			writer.write("}}");
+			first = false;
+		}
+		
+		writer.write("\n]}\n");
+		writer.flush();
+	}
+	
+	/**
+	 * Get the events in the Chrome trace event format
+	 * 
+	 * @see #writeJson(Writer)
+	 */
+	public String toJson() {
+		StringWriter writer = new StringWriter();
+		
+		try {
+			writeJson(writer);
+		
+		} catch (IOException e) {}
+		
+		return writer.toString();
+	}
+	
+	/**
+	 * Internal method used to write a quoted and escaped JSON string
+	 */
+	protected static void writeString(Writer writer, String value) throws IOException {
+		if (value == null) {
+			writer.write("null"); return;
+		}
+		
+		writer.write('"');
+		
+		for (int i=0; i < value.length(); i++) {
+			char current = value.charAt(i);
+			
+			switch (current) {
+				case '"': writer.write("\\\""); break;
+				case '\\': writer.write("\\\\"); break;
+				case '\n': writer.write("\\n"); break;
+				case '\r': writer.write("\\r"); break;
+				case '\t': writer.write("\\t"); break;
+				
+				default:
+					if (current < 0x20) {
+						writer.write(String.format("\\u%04x", (int) current));
+					
+					} else {
+						writer.write(current);
+					}
+			}
+		}
+		
+		writer.write('"');
+	}
+}
@@ -294,7 +294,7 @@ public class Device {
 			String cmd = mShell.findCommand("pidof");
 			
 			if (cmd != null) {
-				Result result = mShell.execute(cmd + " '" + mProcess + "'");
+				Result result = mShell.executeCached(cmd + " '" + mProcess + "'", 2000);
 				
 				String pids = result.getLine();
 				
@@ -330,7 +330,7 @@ public class Device {
 			String cmd = mShell.findCommand("pidof");
 			
 			if (cmd != null) {
-				Result result = mShell.createAttempts(cmd + " '" + name + "'").execute();
+				Result result = mShell.createAttempts(cmd + " '" + name + "'").setReadOnly(true).execute();
 				
 				if (result != null && result.wasSuccessful()) {
 					String pids = result.getLine();
@@ -438,6 +438,11 @@ public class Device {
 				}
 			}
 
+			/*
+			 * Cached pid lookups can no longer be trusted
+			 */
+			mShell.getResultCache().clear();
+			
 			return result != null && result.wasSuccessful();
 		}
 	}
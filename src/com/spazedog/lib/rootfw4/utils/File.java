@@ -37,6 +37,7 @@ import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.spazedog.lib.rootfw4.Capabilities;
 import com.spazedog.lib.rootfw4.Common;
 import com.spazedog.lib.rootfw4.Shell;
 import com.spazedog.lib.rootfw4.Shell.Attempts;
@@ -44,6 +45,8 @@ import com.spazedog.lib.rootfw4.Shell.OnShellBroadcastListener;
 import com.spazedog.lib.rootfw4.Shell.OnShellResultListener;
 import com.spazedog.lib.rootfw4.Shell.OnShellValidateListener;
 import com.spazedog.lib.rootfw4.Shell.Result;
+import com.spazedog.lib.rootfw4.ShellTracer;
+import com.spazedog.lib.rootfw4.ShellTracer.Span;
 import com.spazedog.lib.rootfw4.containers.BasicContainer;
 import com.spazedog.lib.rootfw4.containers.Data;
 import com.spazedog.lib.rootfw4.containers.Data.DataSorting;
@@ -276,15 +279,49 @@ public class File {
 	 *     An array of {@link FileStat} object
 	 */
 	public FileStat[] getDetailedList(Integer maxLines) {
+		ShellTracer tracer = mShell.getTracer();
+		Span span = tracer != null ? tracer.begin("file", "File.getDetailedList", "path", getAbsolutePath()) : null;
+		
+		try {
+			return listDetails(maxLines);
+		
+		} finally {
+			if (span != null) {
+				span.end();
+			}
+		}
+	}
+	
+	/**
+	 * Get the detailed list of this directory, without tracing it
+	 */
+	protected FileStat[] listDetails(Integer maxLines) {
 		synchronized (mLock) {
 			if (exists()) {
 				String path = getAbsolutePath();
-				String[] attemptCommands = new String[]{"ls -lna '" + path + "'", "ls -la '" + path + "'", "ls -ln '" + path + "'", "ls -l '" + path + "'"};
+				String[] attemptFlags = new String[]{"ls -lna", "ls -la", "ls -ln", "ls -l"};
+				List<String> failedFlags = new ArrayList<String>();
 				
-				for (String command : attemptCommands) {
-					Result result = mShell.createAttempts(command).execute();
+				for (String flags : attemptFlags) {
+					/*
+					 * Skip arguments that has previously failed on this device
+					 */
+					if (Boolean.FALSE.equals(Capabilities.getFeature(flags))) {
+						continue;
+					}
 					
-					if (result.wasSuccessful()) {
+					Result result = mShell.createAttempts(flags + " '" + path + "'").setCacheable(5000).execute();
+					
+					if (result != null && result.wasSuccessful()) {
+						/*
+						 * Since this path works with another set of arguments, the previous failures was caused by the arguments
+						 */
+						for (String failed : failedFlags) {
+							Capabilities.putFeature(failed, false);
+						}
+						
+						Capabilities.putFeature(flags, true);
+						
 						List<FileStat> list = new ArrayList<FileStat>();
 						String[] lines = result.trim().getArray();
 						Integer maxIndex = (maxLines == null || maxLines == 0 ? lines.length : (maxLines < 0 ? lines.length + maxLines : maxLines));
@@ -307,11 +344,11 @@ public class File {
 								stat.mName = parts[5].equals("null") ? parts[6].substring( parts[6].lastIndexOf("/") + 1 ) : parts[5].substring( parts[5].lastIndexOf("/") + 1 );
 								stat.mLink = parts[5].equals("null") ? null : parts[6];
 								stat.mPermission = 0;
-
+								
 								for (int x=1; x < stat.mAccess.length(); x++) {
 									Character ch = stat.mAccess.charAt(x);
 									Integer number = oOctals.get(x + ":" + ch);
-
+									
 									if (number != null) {
 										stat.mPermission += number;
 									}
@@ -329,6 +366,13 @@ public class File {
 						
 						return list.toArray( new FileStat[ list.size() ] );
 					}
+					
+					/*
+					 * A missing result means that the shell was lost, which says nothing about the arguments
+					 */
+					if (result != null) {
+						failedFlags.add(flags);
+					}
 				}
 			}
 			
@@ -412,7 +456,11 @@ public class File {
 					return line;
 					
 				} catch (Throwable e) {
-					String[] attemptCommands = new String[]{"sed -n '1p' '" + getAbsolutePath() + "' 2> /dev/null", "cat '" + getAbsolutePath() + "' 2> /dev/null"};
+					/*
+					 * Errors only needs to be silenced when they would otherwise end up in the output
+					 */
+					String quiet = mShell.isSeparatingErrors() ? "" : " 2> /dev/null";
+					String[] attemptCommands = new String[]{"sed -n '1p' '" + getAbsolutePath() + "'" + quiet, "cat '" + getAbsolutePath() + "'" + quiet};
 					
 					for (String command : attemptCommands) {
 						Result result = mShell.createAttempts(command).execute();
@@ -451,7 +499,7 @@ public class File {
 					return new FileData( content.toArray( new String[ content.size() ] ) );
 					
 				} catch(Throwable e) {
-					Result result = mShell.createAttempts("cat '" + getAbsolutePath() + "' 2> /dev/null").execute();
+					Result result = mShell.createAttempts("cat '" + getAbsolutePath() + "' 2> /dev/null").setReadOnly(true).execute();
 					
 					if (result != null && result.wasSuccessful()) {
 						return new FileData( result.getArray() );
@@ -511,7 +559,7 @@ public class File {
 						return new FileData( result.getArray() );
 						
 					} else {
-						result = mShell.createAttempts("cat '" + getAbsolutePath() + "' 2> /dev/null").execute();
+						result = mShell.createAttempts("cat '" + getAbsolutePath() + "' 2> /dev/null").setReadOnly(true).execute();
 						
 						if (result != null && result.wasSuccessful()) {
 							result.sort(new DataSorting() {
@@ -623,6 +671,23 @@ public class File {
 	 *     <code>True</code> if the file was deleted, <code>False</code> otherwise
 	 */
 	public Boolean remove() {
+		ShellTracer tracer = mShell.getTracer();
+		Span span = tracer != null ? tracer.begin("file", "File.remove", "path", getAbsolutePath()) : null;
+		
+		try {
+			return removeFile();
+		
+		} finally {
+			if (span != null) {
+				span.end();
+			}
+		}
+	}
+	
+	/**
+	 * Remove this file, without tracing it
+	 */
+	protected Boolean removeFile() {
 		synchronized (mLock) {
 			Boolean status = false;
 			
@@ -637,14 +702,14 @@ public class File {
 						}
 					}
 				}
-				
+					
 				if (!(status = mFile.delete())) {
 					String rmCommand = isFile() || isLink() ? "unlink" : "rmdir";
 					String[] commands = new String[]{"rm -rf '" + path + "' 2> /dev/null", rmCommand + " '" + path + "' 2> /dev/null"};
-					
+						
 					for (String command : commands) {
 						Result result = mShell.createAttempts(command).execute();
-						
+							
 						if (result != null && (status = result.wasSuccessful())) {
 							break;
 						}
@@ -661,7 +726,7 @@ public class File {
 					
 					Shell.sendBroadcast("file", bundle);
 				}
-				
+			
 			} else {
 				status = true;
 			}
@@ -914,6 +979,23 @@ public class File {
 	 *     <code>True</code> on success, <code>False</code> otherwise
 	 */
 	public Boolean copy(String dstPath, Boolean overwrite, Boolean preservePerms) {
+		ShellTracer tracer = mShell.getTracer();
+		Span span = tracer != null ? tracer.begin("file", "File.copy", "path", getAbsolutePath(), "destination", dstPath) : null;
+		
+		try {
+			return copyFile(dstPath, overwrite, preservePerms);
+		
+		} finally {
+			if (span != null) {
+				span.end();
+			}
+		}
+	}
+	
+	/**
+	 * Copy this file, without tracing it
+	 */
+	protected Boolean copyFile(String dstPath, Boolean overwrite, Boolean preservePerms) {
 		synchronized (mLock) {
 			Boolean status = false;
 			
@@ -935,22 +1017,22 @@ public class File {
 							return false;
 						}
 					}
-
+							
 				} else if (isDirectory() && (!overwrite || (!dstFile.exists() || dstFile.remove())) && ((!dstFile.exists() && dstFile.createDirectories()) || dstFile.isDirectory())) {
 					String[] list = getList();
-					
+
 					if (list != null) {
 						status = true;
 						String srcAbsPath = getAbsolutePath();
 						String dstAbsPath = dstFile.getAbsolutePath();
-						
+					
 						for (String entry : list) {
 							File entryFile = getFile(srcAbsPath + "/" + entry);
-							
+						
 							if (!(status = entryFile.copy(dstAbsPath + "/" + entry, overwrite, preservePerms))) {
 								if (entryFile.isDirectory() || overwrite == entryFile.exists()) {
 									return false;
-									
+							
 								} else {
 									status = true;
 								}
@@ -974,7 +1056,7 @@ public class File {
 						output.close();
 						
 						status = true;
-						
+					
 					} catch (Throwable e) {
 						Result result = mShell.createAttempts("cat '" + getAbsolutePath() + "' > '" + dstFile.getAbsolutePath() + "' 2> /dev/null").execute();
 						
@@ -1098,6 +1180,14 @@ public class File {
 				Result result = mShell.createAttempts(builder.toString()).execute();
 				
 				if (result != null && result.wasSuccessful()) {
+					/*
+					 * Alert other instances, so that cached details about this file is not used
+					 */
+					Bundle bundle = new Bundle();
+					bundle.putString("action", "changed");
+					bundle.putString("location", getAbsolutePath());
+					Shell.sendBroadcast("file", bundle);
+					
 					return true;
 				}
 			}
@@ -1133,7 +1223,8 @@ public class File {
 					
 				} else if ((size = mFile.length()) == 0) {
 					String path = getAbsolutePath();
-					String[] commands = new String[]{"wc -c < '" + path + "' 2> /dev/null", "wc < '" + path + "' 2> /dev/null"};
+					String quiet = mShell.isSeparatingErrors() ? "" : " 2> /dev/null";
+					String[] commands = new String[]{"wc -c < '" + path + "'" + quiet, "wc < '" + path + "'" + quiet};
 					Result result = null;
 					
 					for (int i=0; i < commands.length; i++) {
@@ -1404,7 +1495,7 @@ public class File {
 				 * But we can trust a true value, so we only do a shell check on false return. 
 				 */
 				if (!mFile.exists()) {
-					Attempts attempts = mShell.createAttempts("( %binary test -e '" + getAbsolutePath() + "' && echo true ) || ( %binary test ! -e '" + getAbsolutePath() + "' && echo false )");
+					Attempts attempts = mShell.createAttempts("( %binary test -e '" + getAbsolutePath() + "' && echo true ) || ( %binary test ! -e '" + getAbsolutePath() + "' && echo false )").setReadOnly(true);
 					Result result = attempts.execute();
 					
 					if (result != null && result.wasSuccessful()) {
@@ -1415,7 +1506,7 @@ public class File {
 						 * Some toolsbox version does not have the 'test' command.
 						 * Instead we try 'ls' on the file and check for errors, not pretty but affective. 
 						 */
-						result = mShell.createAttempts("ls '" + getAbsolutePath() + "' > /dev/null 2>&1").execute();
+						result = mShell.createAttempts("ls '" + getAbsolutePath() + "' > /dev/null 2>&1").setReadOnly(true).execute();
 						
 						if (result != null && result.wasSuccessful()) {
 							mExistsLevel = 1;
@@ -1445,7 +1536,7 @@ public class File {
 					 * If it exists, but is neither a file nor a directory, then we better do a shell check
 					 */
 					if (!mFile.isDirectory() && !mFile.isFile()) {
-						Attempts attempts = mShell.createAttempts("( %binary test -d '" + getAbsolutePath() + "' && echo true ) || ( %binary test ! -d '" + getAbsolutePath() + "' && echo false )");
+						Attempts attempts = mShell.createAttempts("( %binary test -d '" + getAbsolutePath() + "' && echo true ) || ( %binary test ! -d '" + getAbsolutePath() + "' && echo false )").setReadOnly(true);
 						Result result = attempts.execute();
 						
 						if (result != null && result.wasSuccessful()) {
@@ -1482,7 +1573,7 @@ public class File {
 				mLinkLevel = 0;
 				
 				if (exists()) {
-					Attempts attempts = mShell.createAttempts("( %binary test -L '" + getAbsolutePath() + "' && echo true ) || ( %binary test ! -L '" + getAbsolutePath() + "' && echo false )");
+					Attempts attempts = mShell.createAttempts("( %binary test -L '" + getAbsolutePath() + "' && echo true ) || ( %binary test ! -L '" + getAbsolutePath() + "' && echo false )").setReadOnly(true);
 					Result result = attempts.execute();
 					
 					if (result != null && result.wasSuccessful()) {
@@ -1605,7 +1696,7 @@ public class File {
 				/*
 				 * Second we try using readlink, if the first failed. 
 				 */
-				Result result = mShell.createAttempts("readlink -f '" + getAbsolutePath() + "' 2> /dev/null").execute();
+				Result result = mShell.createAttempts("readlink -f '" + getAbsolutePath() + "' 2> /dev/null").setCacheable(10000).execute();
 				
 				if (result.wasSuccessful()) {
 					return result.getLine();
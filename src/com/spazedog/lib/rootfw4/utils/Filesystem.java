@@ -27,8 +27,10 @@ import java.util.Locale;
 import java.util.Set;
 import java.util.regex.Pattern;
 
+import android.os.Bundle;
 import android.text.TextUtils;
 
+import com.spazedog.lib.rootfw4.Capabilities;
 import com.spazedog.lib.rootfw4.Common;
 import com.spazedog.lib.rootfw4.Shell;
 import com.spazedog.lib.rootfw4.Shell.Result;
@@ -409,7 +411,23 @@ public class Filesystem {
 			
 			Result result = mShell.createAttempts(cmd).execute();
 			
-			return result != null && result.wasSuccessful();
+			if (result != null && result.wasSuccessful()) {
+				broadcastMount(location != null ? location : mFile.getAbsolutePath()); return true;
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Alert other instances that the content of a location has changed because of a mount, 
+		 * so that cached results like those from <code>df</code> are not used
+		 */
+		protected void broadcastMount(String location) {
+			Bundle bundle = new Bundle();
+			bundle.putString("action", "exists");
+			bundle.putString("location", location);
+			
+			Shell.sendBroadcast("file", bundle);
 		}
 		
 		/**
@@ -425,7 +443,7 @@ public class Filesystem {
 				Result result = mShell.createAttempts(command).execute();
 				
 				if (result != null && result.wasSuccessful()) {
-					return true;
+					broadcastMount(mFile.getAbsolutePath()); return true;
 				}
 			}
 
@@ -451,9 +469,14 @@ public class Filesystem {
 				if (stat != null && unmount()) {
 					return getDisk(stat.device()).mount(stat.location(), stat.fstype(), stat.options());
 				}
+				
+				return false;
 			}
 			
-			return result != null && result.wasSuccessful();
+			broadcastMount(mFile.getAbsolutePath());
+			broadcastMount(destination);
+			
+			return true;
 		}
 		
 		/**
@@ -602,10 +625,18 @@ public class Filesystem {
 		 *     A single {@link DiskStat} object
 		 */
 		public DiskStat getDiskDetails() {
-			String[] commands = new String[]{"df -k '" + mFile.getAbsolutePath() + "'", "df '" + mFile.getAbsolutePath() + "'"};
+			String[] commandFlags = new String[]{"df -k", "df"};
+			List<String> failedFlags = new ArrayList<String>();
 			
-			for (String command : commands) {
-				Result result = mShell.createAttempts(command).execute();
+			for (String flags : commandFlags) {
+				/*
+				 * Skip arguments that has previously failed on this device
+				 */
+				if (Boolean.FALSE.equals(Capabilities.getFeature(flags))) {
+					continue;
+				}
+				
+				Result result = mShell.createAttempts(flags + " '" + mFile.getAbsolutePath() + "'").setCacheable(5000).execute();
 
 				if (result != null && result.wasSuccessful() && result.size() > 1) {
 					/* Depending on how long the line is, the df command some times breaks a line into two */
@@ -681,10 +712,26 @@ public class Filesystem {
 						info.mUsage = pUsage;
 						info.mAvailable = pRemaining;
 						info.mPercentage = pPercentage;
+						
+						/*
+						 * Since this path works with another set of arguments, the previous failures was caused by the arguments
+						 */
+						for (String failed : failedFlags) {
+							Capabilities.putFeature(failed, false);
+						}
+						
+						Capabilities.putFeature(flags, true);
 		
 						return info;
 					}
 				}
+				
+				/*
+				 * Output that could not be parsed says nothing about the arguments, only the result code of the command itself does
+				 */
+				if (result != null && !result.wasSuccessful()) {
+					failedFlags.add(flags);
+				}
 			}
 			
 			return null;
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Pattern;
 
+import com.spazedog.lib.rootfw4.Capabilities;
 import com.spazedog.lib.rootfw4.Common;
 import com.spazedog.lib.rootfw4.Shell;
 import com.spazedog.lib.rootfw4.Shell.Result;
@@ -305,17 +306,23 @@ public class Memory {
 	 */
 	public Boolean hasCompCacheSupport() {
 		if (oCompCacheSupport == null) {
-			oCompCacheSupport = false;
+			oCompCacheSupport = Capabilities.getFeature("compcache");
+		}
+		
+		if (oCompCacheSupport == null) {
+			Boolean support = false;
 			
 			if (hasSwapSupport()) {
 				String[] files = new String[]{"/dev/block/ramzswap0", "/dev/block/zram0", "/system/lib/modules/ramzswap.ko", "/system/lib/modules/zram.ko"};
 				
 				for (String file : files) {
 					if (mShell.getFile(file).exists()) {
-						oCompCacheSupport = true; break;
+						support = true; break;
 					}
 				}
 			}
+			
+			Capabilities.putFeature("compcache", (oCompCacheSupport = support));
 		}
 		
 		return oCompCacheSupport;
@@ -326,7 +333,11 @@ public class Memory {
 	 */
 	public Boolean hasSwapSupport() {
 		if (oSwapSupport == null) {
-			oSwapSupport = mShell.getFile("/proc/swaps").exists();
+			oSwapSupport = Capabilities.getFeature("swap");
+		}
+		
+		if (oSwapSupport == null) {
+			Capabilities.putFeature("swap", (oSwapSupport = mShell.getFile("/proc/swaps").exists()));
 		}
 		
 		return oSwapSupport;
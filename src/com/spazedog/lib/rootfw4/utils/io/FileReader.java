@@ -29,6 +29,7 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.nio.CharBuffer;
 
+import com.spazedog.lib.rootfw4.Capabilities;
 import com.spazedog.lib.rootfw4.Common;
 import com.spazedog.lib.rootfw4.Shell;
 import com.spazedog.lib.rootfw4.ShellStream;
@@ -65,7 +66,11 @@ public class FileReader extends Reader {
 			mStream = new InputStreamReader(new FileInputStream(filePath));
 			
 		} catch (FileNotFoundException e) {
-			String binary = shell != null ? shell.findCommand("cat") : "toolbox cat";
+			String binary = shell != null ? shell.findCommand("cat") : Capabilities.findCommand("cat");
+			
+			if (binary == null) {
+				binary = "toolbox cat";
+			}
 			
 			try {
 				ProcessBuilder builder = new ProcessBuilder("su");
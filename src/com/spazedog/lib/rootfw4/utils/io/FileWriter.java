@@ -27,6 +27,7 @@ import java.io.Writer;
 
 import android.os.Bundle;
 
+import com.spazedog.lib.rootfw4.Capabilities;
 import com.spazedog.lib.rootfw4.Common;
 import com.spazedog.lib.rootfw4.Shell;
 
@@ -39,6 +40,7 @@ public class FileWriter extends Writer {
 	
 	protected DataOutputStream mStream;
 	protected Process mProcess;
+	protected String mFilePath;
 	
 	public FileWriter(String file) throws IOException {
 		this(null, file, false);
@@ -53,11 +55,17 @@ public class FileWriter extends Writer {
 		
 		String filePath = new File(file).getAbsolutePath();
 		
+		mFilePath = filePath;
+		
 		try {
 			mStream = new DataOutputStream(new FileOutputStream(filePath, append));
 			
 		} catch (IOException e) {
-			String binary = shell != null ? shell.findCommand("cat") : "toolbox cat";
+			String binary = shell != null ? shell.findCommand("cat") : Capabilities.findCommand("cat");
+			
+			if (binary == null) {
+				binary = "toolbox cat";
+			}
 			
 			try {
 				mProcess = new ProcessBuilder("su").start();
@@ -110,6 +118,15 @@ public class FileWriter extends Writer {
 			mProcess.destroy();
 			mProcess = null;
 		}
+		
+		/*
+		 * The content has changed, so cached results for this file can no longer be used
+		 */
+		Bundle bundle = new Bundle();
+		bundle.putString("action", "changed");
+		bundle.putString("location", mFilePath);
+		
+		Shell.sendBroadcast("file", bundle);
 	}
 
 	/**